@@ -0,0 +1,24 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.CompressingCacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class CacheCodecConfig {
+    /*
+    binary: compact field-by-field format, still reads json written before
+    json: hutool json, the original format
+    values of at least `compress-threshold` bytes are deflated, 0 turns it off
+     */
+    @Bean
+    public CacheCodec cacheCodec(@Value("${hmdp.cache.codec:binary}") String codec,
+                                 @Value("${hmdp.cache.compress-threshold:1024}") int compressThreshold) {
+        CacheCodec cacheCodec = "json".equals(codec) ? new JsonCacheCodec() : new BinaryCacheCodec();
+        return compressThreshold > 0 ? new CompressingCacheCodec(cacheCodec, compressThreshold) : cacheCodec;
+    }
+}
@@ -0,0 +1,41 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.IIdWorker;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SegmentRedisIdWorker;
+import com.hmdp.utils.SnowflakeIdWorker;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+
+@Configuration
+public class IdWorkerConfig {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /*
+    redis: INCR per id
+    segment: INCRBY per `segment-step` ids, refilled in the background
+    snowflake: no redis at all, each node needs a distinct worker-id
+     */
+    @Bean
+    public IIdWorker idWorker(@Value("${hmdp.id.engine:redis}") String engine,
+                              @Value("${hmdp.id.segment-step:10000}") long segmentStep,
+                              @Value("${hmdp.id.worker-id:-1}") long workerId) {
+        switch (engine) {
+            case "segment":
+                return new SegmentRedisIdWorker(stringRedisTemplate, segmentStep);
+            case "snowflake":
+                if (workerId < 0) {
+                    // a shared default would let two nodes issue the same ids
+                    throw new IllegalStateException("hmdp.id.worker-id must be set to a distinct value per node for the snowflake engine");
+                }
+                return new SnowflakeIdWorker(workerId);
+            default:
+                return new RedisIdWorker(stringRedisTemplate);
+        }
+    }
+}
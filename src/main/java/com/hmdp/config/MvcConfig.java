@@ -25,6 +25,7 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/voucher/**",
                         "/shop-type/**",
                         "/upload/**",
+                        "/health/**",
                         "/blog/hot",
                         "/user/code",
                         "/user/login"
@@ -0,0 +1,114 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IShopService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheInvalidationOutbox;
+import com.hmdp.utils.CacheWarmer;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.IdBloomFilter;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopSearchIndex;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.List;
+
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
+    @Resource
+    private CacheInvalidationOutbox cacheInvalidationOutbox;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private CacheWarmer cacheWarmer;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private ShopSearchIndex shopSearchIndex;
+
+    @Resource
+    private IShopService shopService;
+
+    /**
+     * 本地缓存和redis缓存的命中率
+     */
+    @GetMapping("stats")
+    public Result stats() {
+        return Result.ok(cacheClient.stats());
+    }
+
+    /**
+     * 布隆过滤器的容量和已加载的id数
+     */
+    @GetMapping("bloom")
+    public Result bloom() {
+        return Result.ok(idBloomFilter.stats());
+    }
+
+    /**
+     * 本地商铺网格索引的商铺数和网格数
+     */
+    @GetMapping("geo-index")
+    public Result geoIndex() {
+        return Result.ok(shopGeoIndex.stats());
+    }
+
+    /**
+     * 商铺搜索索引的商铺数和词条数
+     */
+    @GetMapping("search-index")
+    public Result searchIndex() {
+        return Result.ok(shopSearchIndex.stats());
+    }
+
+    /**
+     * 最近一个窗口内访问最多的redis key，hot为true的已提升到本地缓存
+     */
+    @GetMapping("hot-keys")
+    public Result hotKeys() {
+        return Result.ok(hotKeyDetector.topK());
+    }
+
+    /**
+     * 立即处理outbox中积压的缓存失效事件，返回处理条数
+     */
+    @PostMapping("outbox/poll")
+    public Result pollOutbox() {
+        return Result.ok(cacheInvalidationOutbox.poll());
+    }
+
+    /**
+     * 手动触发一次全量预热（如redis被flush后），已在运行时返回false
+     */
+    @PostMapping("warm-up")
+    public Result warmUp() {
+        return Result.ok(cacheWarmer.trigger());
+    }
+
+    /**
+     * 预热指定商铺的缓存（按当前缓存模式的格式）
+     * @param ids 商铺id列表，一次最多1000个
+     * @return 预热成功的数量
+     */
+    @PostMapping("shop/warm-up")
+    public Result warmUpShops(@RequestBody List<Long> ids) {
+        return shopService.warmUp(ids);
+    }
+}
@@ -0,0 +1,38 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheWarmer;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletResponse;
+
+@RestController
+@RequestMapping("/health")
+public class HealthController {
+    @Resource
+    private CacheWarmer cacheWarmer;
+
+    /**
+     * 存活检查
+     */
+    @GetMapping("liveness")
+    public Result liveness() {
+        return Result.ok();
+    }
+
+    /**
+     * 就绪检查，首次缓存预热完成前返回503
+     */
+    @GetMapping("readiness")
+    public Result readiness(HttpServletResponse response) {
+        if (!cacheWarmer.isReady()) {
+            response.setStatus(503);
+            return Result.fail("warming up caches");
+        }
+        return Result.ok(cacheWarmer.status());
+    }
+}
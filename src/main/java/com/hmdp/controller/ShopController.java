@@ -1,12 +1,9 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -44,10 +41,8 @@ public class ShopController {
     @PostMapping
     @CrossOrigin(origins = "*", allowedHeaders = "*")
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库，返回店铺id
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -78,6 +73,46 @@ public class ShopController {
         return shopService.queryShopByType(typeId, current, x, y);
     }
 
+    /**
+     * 搜索联想，名称（或拼音、拼音首字母）以前缀开头的商铺，按销量、评分排序
+     * @param prefix 已输入的前缀
+     * @param limit 最多返回的数量
+     * @return 联想列表
+     */
+    @GetMapping("/suggest")
+    public Result suggest(
+            @RequestParam(value = "prefix", required = false) String prefix,
+            @RequestParam(value = "limit", defaultValue = "10") Integer limit
+    ) {
+        return shopService.suggest(prefix, limit);
+    }
+
+    /**
+     * 附近商铺，按距离排序，需开启 hmdp.geo.index-enabled
+     * @param x 经度
+     * @param y 纬度
+     * @param radius 半径（米），超过 hmdp.geo.max-radius 按它处理
+     * @param limit 最多返回的数量
+     * @param typeId 商铺类型，可选
+     * @param minPrice 最低人均价格，可选
+     * @param maxPrice 最高人均价格，可选
+     * @param minScore 最低评分，可选
+     * @return 商铺列表
+     */
+    @GetMapping("/nearby")
+    public Result queryNearby(
+            @RequestParam("x") Double x,
+            @RequestParam("y") Double y,
+            @RequestParam(value = "radius", defaultValue = "5000") Double radius,
+            @RequestParam(value = "limit", defaultValue = "10") Integer limit,
+            @RequestParam(value = "typeId", required = false) Long typeId,
+            @RequestParam(value = "minPrice", required = false) Long minPrice,
+            @RequestParam(value = "maxPrice", required = false) Long maxPrice,
+            @RequestParam(value = "minScore", required = false) Integer minScore
+    ) {
+        return shopService.queryNearby(x, y, radius, limit, typeId, minPrice, maxPrice, minScore);
+    }
+
     /**
      * 根据商铺名称关键字分页查询商铺信息
      * @param name 商铺名称关键字
@@ -89,11 +124,6 @@ public class ShopController {
             @RequestParam(value = "name", required = false) String name,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopService.queryShopByName(name, current);
     }
 }
@@ -29,9 +29,7 @@ public class ShopTypeController {
     @CrossOrigin(origins = "*", allowedHeaders = "*")
     @GetMapping("list")
     public Result queryTypeList() {
-        // todo: also use redis to cache here! string or list are ok
-        List<ShopType> typeList = typeService
-                .query().orderByAsc("sort").list();
+        List<ShopType> typeList = typeService.queryTypeList();
         return Result.ok(typeList);
     }
 }
@@ -9,6 +9,7 @@ import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
@@ -32,6 +33,9 @@ public class UserController {
     @Resource
     private IUserService userService;
 
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
     @Resource
     private IUserInfoService userInfoService;
 
@@ -85,6 +89,9 @@ public class UserController {
 
     @GetMapping("/{id}")
     public Result queryUserById(@PathVariable("id") Long userId) {
+        if (!idBloomFilter.mightContain(IdBloomFilter.USER, userId)) {
+            return Result.ok();
+        }
         User user = userService.getById(userId);
         if (user == null) {
             return Result.ok();
@@ -2,10 +2,12 @@ package com.hmdp.controller;
 
 
 import com.hmdp.dto.Result;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillAdmission;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletResponse;
 
 /**
  * <p>
@@ -18,8 +20,53 @@ import org.springframework.web.bind.annotation.RestController;
 @RestController
 @RequestMapping("/voucher-order")
 public class VoucherOrderController {
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillAdmission seckillAdmission;
+
     @PostMapping("seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) {
-        return Result.fail("功能未完成");
+    public Result seckillVoucher(@PathVariable("id") Long voucherId, HttpServletResponse response) {
+        // over the limit of this voucher, reject instead of waiting on redis
+        SeckillAdmission.Permit permit = seckillAdmission.tryAcquire(voucherId);
+        if (permit == null) {
+            response.setStatus(429);
+            response.setHeader("Retry-After", "1");
+            return Result.fail("too many requests, please retry later");
+        }
+        try {
+            return voucherOrderService.seckillVoucher(voucherId);
+        } finally {
+            permit.release();
+        }
+    }
+
+    /**
+     * 查询秒杀订单的异步处理状态：QUEUED、CREATED、FAILED，只读redis
+     * @param orderId 订单id
+     * @return 订单状态
+     */
+    @GetMapping("{id}/status")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
+
+    /**
+     * 把死信stream中的订单重新投递回原来的stream
+     * @param count 最多重放的条数
+     * @return 重放的条数
+     */
+    @PostMapping("dlq/replay")
+    public Result replayDeadLetters(@RequestParam(value = "count", defaultValue = "100") Integer count) {
+        return voucherOrderService.replayDeadLetters(count);
+    }
+
+    /**
+     * 各秒杀券的放行、拒绝和执行中的请求数
+     */
+    @GetMapping("admission/metrics")
+    public Result admissionMetrics() {
+        return Result.ok(seckillAdmission.metrics());
     }
 }
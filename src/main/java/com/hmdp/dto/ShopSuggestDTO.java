@@ -0,0 +1,12 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class ShopSuggestDTO {
+    private Long id;
+    private String name;
+    private String area;
+    private Integer sold;
+    private Integer score;
+}
@@ -90,6 +90,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private LocalDateTime endTime;
 
+    /**
+     * 库存分片数，热门秒杀券大于1时库存拆到多个key上
+     */
+    @TableField(exist = false)
+    private Integer stockShards;
+
     /**
      * 创建时间
      */
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -18,5 +20,21 @@ public interface IShopService extends IService<Shop> {
 
     Result update(Shop shop);
 
+    Result saveShop(Shop shop);
+
+    Result warmUp(List<Long> ids);
+
+    int warmUpShops(List<Long> ids);
+
+    List<Long> queryTopShopIds(int count);
+
+    int loadShopGeo();
+
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+
+    Result queryShopByName(String name, Integer current);
+
+    Result suggest(String prefix, Integer limit);
+
+    Result queryNearby(double x, double y, double radius, int limit, Long typeId, Long minPrice, Long maxPrice, Integer minScore);
 }
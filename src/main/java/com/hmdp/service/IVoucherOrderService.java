@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -15,5 +17,11 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IVoucherOrderService extends IService<VoucherOrder> {
     public Result seckillVoucher(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    Result queryOrderStatus(Long orderId);
+
+    Result replayDeadLetters(Integer count);
+
+    boolean createVoucherOrder(VoucherOrder voucherOrder);
+
+    List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders);
 }
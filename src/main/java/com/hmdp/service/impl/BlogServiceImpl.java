@@ -2,23 +2,26 @@ package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import jodd.util.StringUtil;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
@@ -27,7 +30,10 @@ import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -40,12 +46,21 @@ import java.util.stream.Collectors;
  */
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
+    // a hot blog with more likers than this is still checked with ZSCORE
+    private static final long LOCAL_LIKERS_MAX = 10_000;
+
     @Resource
     private IUserService userService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private IFollowService followService;
+    @Resource
+    private IdBloomFilter idBloomFilter;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
     @Override
     public Result queryHotBlog(Integer current) {
         // 根据用户查询
@@ -54,37 +69,79 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.updateIsLiked(blog);
-        });
+        // 查询用户, one batch for the whole page
+        queryBlogUsers(records);
+        updateIsLiked(records);
         return Result.ok(records);
 
     }
 
     @Override
     public Result queryBlogById(Long id) {
+        // surely not in db, skip the query
+        if (!idBloomFilter.mightContain(IdBloomFilter.BLOG, id)) {
+            return Result.fail("not exist!");
+        }
         Blog blog = getById(id);
         if (blog == null) {
             return Result.fail("not exist!");
         }
-        queryBlogUser(blog);
+        queryBlogUsers(Collections.singletonList(blog));
         // update whether it has been liked
-        updateIsLiked(blog);
-        return null;
+        updateIsLiked(Collections.singletonList(blog));
+        return Result.ok(blog);
     }
 
-    private void updateIsLiked(Blog blog) {
+    /*
+    one pipelined ZSCORE per blog instead of a round trip each. a hot blog is answered from a local
+    copy of its likers (loaded once per hot key ttl) so every reader does not hit the same zset
+     */
+    private void updateIsLiked(List<Blog> blogs) {
         UserDTO user = UserHolder.getUser();
         // check user login
-        if (user == null) {
+        if (user == null || blogs.isEmpty()) {
             return;
         }
-        Long userId = UserHolder.getUser().getId();
-        String key = "blog:liked:" + blog.getId();
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        blog.setIsLike(score != null);
+        String userId = user.getId().toString();
+        List<Blog> remote = new ArrayList<>(blogs.size());
+        for (Blog blog : blogs) {
+            String key = RedisConstants.BLOG_LIKED_KEY + blog.getId();
+            if (!hotKeyDetector.isHot(key)) {
+                hotKeyDetector.record(key);
+                remote.add(blog);
+                continue;
+            }
+            Set<String> likers = hotKeyDetector.read(key, "likers", () -> likers(key));
+            if (likers == null) {
+                remote.add(blog);
+            } else {
+                blog.setIsLike(likers.contains(userId));
+            }
+        }
+        if (remote.isEmpty()) {
+            return;
+        }
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (Blog blog : remote) {
+                stringConnection.zScore(RedisConstants.BLOG_LIKED_KEY + blog.getId(), userId);
+            }
+            return null;
+        });
+        for (int i = 0; i < remote.size(); i++) {
+            remote.get(i).setIsLike(scores.get(i) != null);
+        }
+    }
+
+    /*
+    all likers of a blog, null when there are too many to keep a local copy
+     */
+    private Set<String> likers(String key) {
+        Long size = stringRedisTemplate.opsForZSet().zCard(key);
+        if (size == null || size > LOCAL_LIKERS_MAX) {
+            return null;
+        }
+        return stringRedisTemplate.opsForZSet().range(key, 0, -1);
     }
 
     @Override
@@ -97,13 +154,19 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (score == null) {
             boolean isSuccess = update().setSql("liked = liked + 1").eq("id", id).update();
             if (isSuccess) {
+                cacheClient.delete(RedisConstants.CACHE_BLOG_KEY + id);
                 // zadd key val score
                 stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+                hotKeyDetector.invalidate(key);
             }
         } else {
             // cancel like
             boolean isSuccess = update().setSql("liked = liked - 1").eq("id", id).update();
+            if (isSuccess) {
+                cacheClient.delete(RedisConstants.CACHE_BLOG_KEY + id);
+            }
             stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+            hotKeyDetector.invalidate(key);
         }
     }
 
@@ -111,17 +174,13 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result queryBlogLikedUsers(Long id) {
         // search top 5 user info
         String key = RedisConstants.BLOG_LIKED_KEY + id;
-        Set<String> top5 = stringRedisTemplate.opsForZSet().range(key, 0, 4);
+        Set<String> top5 = hotKeyDetector.read(key, "top5", () -> stringRedisTemplate.opsForZSet().range(key, 0, 4));
         if (top5 == null | top5.isEmpty()) {
             return Result.ok(Collections.emptyList());
         }
         // user id to get user
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idStr = StrUtil.join(",", ids);
-        List<Object> userDTOS = userService.query().in("id", ids).last("ORDER BY FIELD(id," + idStr+ ")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        List<UserDTO> userDTOS = userService.queryUserDTOs(ids);
         return Result.ok(userDTOS);
     }
 
@@ -135,6 +194,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             return Result.fail("failed to save review blog");
         }
+        idBloomFilter.add(IdBloomFilter.BLOG, blog.getId());
         // search fans: select * from tb_follow where follow_user_id = ?
         List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
         // push reviews to fans
@@ -143,6 +203,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             // inbox
             String key = RedisConstants.FEED_KEY + userId;
             stringRedisTemplate.opsForZSet().add(key, blog.getId().toString(), System.currentTimeMillis());
+            hotKeyDetector.invalidate(key);
         }
         // 返回id
 
@@ -154,7 +215,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         Long userId = UserHolder.getUser().getId();
         // get inbox: zreverserangebyscore key max min limit offset count
         String key = RedisConstants.FEED_KEY + userId;
-        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet().reverseRangeByScoreWithScores(key, 0, max, offset, 2);
+        // a hot inbox serves each page from a local copy for the hot key ttl
+        Set<ZSetOperations.TypedTuple<String>> typedTuples = hotKeyDetector.read(key, max + ":" + offset,
+                () -> stringRedisTemplate.opsForZSet().reverseRangeByScoreWithScores(key, 0, max, offset, 2));
         if (typedTuples == null || typedTuples.isEmpty()) {
             return Result.ok();
         }
@@ -171,12 +234,14 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 offsetCount = 1;
             }
         }
-        // get blog by id
-        String idStr = StrUtil.join(",", ids);
-        List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        for (Blog blog: blogs) {
-            queryBlogUser(blog);
-        }
+        // get blog by id, cached blogs are shared so fill in the user on copies
+        List<Blog> blogs = cacheClient.queryByIds(RedisConstants.CACHE_BLOG_KEY, ids, Blog.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Blog::getId, Function.identity())),
+                RedisConstants.CACHE_BLOG_TTL, TimeUnit.MINUTES)
+                .stream()
+                .map(blog -> BeanUtil.copyProperties(blog, Blog.class))
+                .collect(Collectors.toList());
+        queryBlogUsers(blogs);
 
         ScrollResult r = new ScrollResult();
         r.setList(blogs);
@@ -185,10 +250,16 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(r);
     }
 
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    private void queryBlogUsers(List<Blog> blogs) {
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).distinct().collect(Collectors.toList());
+        Map<Long, UserDTO> users = userService.queryUserDTOs(userIds).stream()
+                .collect(Collectors.toMap(UserDTO::getId, Function.identity()));
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
     }
 }
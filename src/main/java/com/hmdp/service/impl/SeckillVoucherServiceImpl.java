@@ -17,4 +17,14 @@ import org.springframework.stereotype.Service;
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    /*
+    stock = stock - count where stock >= count, false when there is not enough
+     */
+    @Override
+    public boolean decreaseStock(Long voucherId, int count) {
+        return update()
+                .setSql("stock = stock - " + count)
+                .eq("voucher_id", voucherId).ge("stock", count)
+                .update();
+    }
 }
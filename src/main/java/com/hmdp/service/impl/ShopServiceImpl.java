@@ -1,9 +1,12 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.RandomUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
@@ -11,19 +14,32 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheInvalidationOutbox;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopSearchIndex;
+import com.hmdp.utils.ShopSuggestTrie;
 import com.hmdp.utils.SystemConstants;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.geo.Distance;
-import org.springframework.data.geo.GeoResult;
 import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -35,32 +51,206 @@ import java.util.concurrent.TimeUnit;
  */
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
+    private static final int GEO_LOAD_PAGE_SIZE = 2000;
+    private static final int WARM_UP_MAX_IDS = 1000;
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
+    @Resource
+    private CacheInvalidationOutbox cacheInvalidationOutbox;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private ShopSearchIndex shopSearchIndex;
+
+    @Resource
+    private ShopSuggestTrie shopSuggestTrie;
+
+    /**
+     * 商铺缓存模式：mutex 互斥锁重建，logical 逻辑过期（需要预热），xfetch 概率提前刷新
+     */
+    @Value("${hmdp.cache.shop-mode:mutex}")
+    private String shopCacheMode;
+
+    /**
+     * 附近商铺按坐标保留几位小数划分网格，3位约100米
+     */
+    @Value("${hmdp.geo.cell-precision:3}")
+    private int geoCellPrecision;
+
+    /**
+     * 网格内排好序的商铺id列表的缓存时间（秒）
+     */
+    @Value("${hmdp.geo.page-ttl-seconds:60}")
+    private long geoPageTtlSeconds;
+
+    /**
+     * 每个网格最多缓存的商铺数
+     */
+    @Value("${hmdp.geo.max-results:1000}")
+    private int geoMaxResults;
+
+    /**
+     * 附近商铺查询的最大半径（米）
+     */
+    @Value("${hmdp.geo.max-radius:20000}")
+    private double geoMaxRadius;
+
     @Override
     public Result queryById(Long id) {
+        // 0. surely not in db, reject before redis
+        if (!idBloomFilter.mightContain(IdBloomFilter.SHOP, id)) {
+            return Result.fail("shop does not exist!");
+        }
         // 1. normal pass through
         // this::getById is short for (ID) -> getById(ID)
         // Shop shop = cacheClient.queryByIdWithoutCachePenetration(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        // 2. consider hot key, using mutex
-        Shop shop = cacheClient.queryByIdByMutexWithoutCacheBreakdown(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        // todo: logic expire can also be realized in the future
+        Shop shop;
+        if ("logical".equals(shopCacheMode)) {
+            // 3. logic expire, never blocks on a hot key
+            shop = cacheClient.queryWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        } else if ("xfetch".equals(shopCacheMode)) {
+            // 4. probabilistic early expiration, hot keys are refreshed before they expire
+            shop = cacheClient.queryWithEarlyExpiration(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        } else {
+            // 2. consider hot key, using mutex
+            shop = cacheClient.queryByIdByMutexWithoutCacheBreakdown(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        }
         return shop == null ? Result.fail("shop does not exist!") : Result.ok(shop);
     }
 
     @Override
+    public Result saveShop(Shop shop) {
+        save(shop);
+        idBloomFilter.add(IdBloomFilter.SHOP, shop.getId());
+        syncShopGeo(shop.getId(), null);
+        shopSearchIndex.reload(shop.getId());
+        shopSuggestTrie.reload(shop.getId());
+        shopGeoIndex.reload(shop.getId());
+        return Result.ok(shop.getId());
+    }
+
+    @Override
+    public Result warmUp(List<Long> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return Result.fail("ids must not be empty");
+        }
+        if (ids.size() > WARM_UP_MAX_IDS) {
+            return Result.fail("at most " + WARM_UP_MAX_IDS + " ids per warm-up");
+        }
+        return Result.ok(warmUpShops(ids));
+    }
+
+    /*
+    one db query and one redis pipeline, written in the format of the current cache mode
+     */
+    @Override
+    public int warmUpShops(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        Map<Long, Shop> shops = listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+        return cacheClient.warmUp(RedisConstants.CACHE_SHOP_KEY, shops, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES,
+                "logical".equals(shopCacheMode));
+    }
+
+    @Override
+    public List<Long> queryTopShopIds(int count) {
+        return listObjs(new QueryWrapper<Shop>().select("id").orderByDesc("sold").last("limit " + count),
+                id -> ((Number) id).longValue());
+    }
+
+    /*
+    (re)build every shop:geo:<typeId> from db. tb_shop is streamed by primary key one page at a time,
+    each page is one pipeline with a GEOADD per type, so memory stays at one page for any table size.
+    members are upserted in place and the sets stay readable during the rebuild
+     */
+    @Override
+    public int loadShopGeo() {
+        long maxId = 0;
+        int total = 0;
+        while (true) {
+            List<Shop> shops = query().select("id", "type_id", "x", "y")
+                    .gt("id", maxId).orderByAsc("id").last("limit " + GEO_LOAD_PAGE_SIZE).list();
+            if (shops.isEmpty()) {
+                break;
+            }
+            Map<Long, List<RedisGeoCommands.GeoLocation<String>>> locations = shops.stream()
+                    .filter(shop -> shop.getTypeId() != null && shop.getX() != null && shop.getY() != null)
+                    .collect(Collectors.groupingBy(Shop::getTypeId, Collectors.mapping(
+                            shop -> new RedisGeoCommands.GeoLocation<>(shop.getId().toString(), new Point(shop.getX(), shop.getY())),
+                            Collectors.toList())));
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                locations.forEach((typeId, list) -> stringConnection.geoAdd(RedisConstants.SHOP_GEO_KEY + typeId, list));
+                return null;
+            });
+            total += locations.values().stream().mapToInt(List::size).sum();
+            maxId = shops.get(shops.size() - 1).getId();
+            if (shops.size() < GEO_LOAD_PAGE_SIZE) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    /*
+    move one shop to the geo set of its current type, removing it from the set of `oldTypeId`
+    when the type changed. inside a transaction the row is read after commit
+     */
+    private void syncShopGeo(Long id, Long oldTypeId) {
+        Runnable sync = () -> {
+            Shop shop = query().select("id", "type_id", "x", "y").eq("id", id).one();
+            boolean located = shop != null && shop.getTypeId() != null && shop.getX() != null && shop.getY() != null;
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                if (oldTypeId != null && (!located || !oldTypeId.equals(shop.getTypeId()))) {
+                    stringConnection.zRem(RedisConstants.SHOP_GEO_KEY + oldTypeId, id.toString());
+                }
+                if (located) {
+                    stringConnection.geoAdd(RedisConstants.SHOP_GEO_KEY + shop.getTypeId(), new Point(shop.getX(), shop.getY()), id.toString());
+                }
+                return null;
+            });
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    sync.run();
+                }
+            });
+        } else {
+            sync.run();
+        }
+    }
+
+    @Override
+    @Transactional
     public Result update(Shop shop) {
         Long id = shop.getId();
         if (id == null) {
             return Result.fail("can not find id");
         }
         String key = RedisConstants.CACHE_SHOP_KEY + id;
+        // the type before the update, to leave its geo set when the type changes
+        Shop old = query().select("type_id").eq("id", id).one();
         updateById(shop);
-        stringRedisTemplate.delete(key);
+        // invalidation is committed with the row, deleted right after commit and again by the outbox poller
+        cacheInvalidationOutbox.record(key);
+        shopGeoIndex.reload(id);
+        syncShopGeo(id, old == null ? null : old.getTypeId());
+        shopSearchIndex.reload(id);
+        shopSuggestTrie.reload(id);
         return Result.ok();
     }
 
@@ -78,33 +268,137 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // page
         int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
         int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
-        // geosearch key bylonlat x y byradius 5  withdistance
-        String key = RedisConstants.SHOP_GEO_KEY + typeId;
-        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(key,
-                GeoReference.fromCoordinate(x, y),
-                new Distance(5000),
-                RedisGeoCommands.GeoRadiusCommandArgs.newGeoSearchArgs().includeDistance().limit(end));
-        if (results == null) {
-            return Result.ok(Collections.emptyList());
+        if (shopGeoIndex.isReady()) {
+            List<ShopGeoIndex.Hit> hits = shopGeoIndex.nearest(x, y, 5000, end,
+                    ShopGeoIndex.filter(typeId.longValue(), null, null, null));
+            return Result.ok(loadShops(hits.subList(Math.min(from, hits.size()), hits.size())));
         }
-        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> contentList = results.getContent();
-        if (contentList.size() < from) {
+        List<Long> ids = queryNearbyShopIds(typeId, x, y, from, end - 1);
+        if (ids.isEmpty()) {
             return Result.ok(Collections.emptyList());
         }
-        // get from to end (ids)
-        List<Long> ids = new ArrayList<>(contentList.size());
-        Map<String, Distance> distanceMap = new HashMap<>(list().size());
-        contentList.stream().skip(from).forEach(result -> {
-            String shopIdStr = result.getContent().getName();
-            ids.add(Long.valueOf(shopIdStr));
-            Distance distance = result.getDistance();
-            distanceMap.put(shopIdStr, distance);
-        });
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        for (Shop shop: shops) {
-            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+        // the distance is exact for this user, a page is sorted by it. pages follow the order of the cell
+        // center, so across pages the order is only as close as the cell size (about 100m)
+        Map<Long, Shop> shopMap = listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+        List<Shop> shops = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            Shop shop = shopMap.get(id);
+            if (shop != null) {
+                shop.setDistance(ShopGeoIndex.distance(x, y, shop.getX(), shop.getY()));
+                shops.add(shop);
+            }
         }
+        shops.sort(Comparator.comparingDouble(Shop::getDistance));
         return Result.ok(shops);
     }
+
+    @Override
+    public Result queryShopByName(String name, Integer current) {
+        int size = SystemConstants.MAX_PAGE_SIZE;
+        if (StrUtil.isNotBlank(name) && shopSearchIndex.isReady()) {
+            // ranked by relevance, no db access
+            return Result.ok(shopSearchIndex.search(name, (current - 1) * size, size));
+        }
+        // 根据类型分页查询
+        Page<Shop> page = query()
+                .like(StrUtil.isNotBlank(name), "name", name)
+                .page(new Page<>(current, size));
+        // 返回数据
+        return Result.ok(page.getRecords());
+    }
+
+    @Override
+    public Result suggest(String prefix, Integer limit) {
+        // walk down the trie, no db access
+        int size = Math.max(0, Math.min(limit, shopSuggestTrie.getTopK()));
+        return Result.ok(shopSuggestTrie.suggest(prefix, size));
+    }
+
+    @Override
+    public Result queryNearby(double x, double y, double radius, int limit, Long typeId, Long minPrice, Long maxPrice, Integer minScore) {
+        if (!shopGeoIndex.isReady()) {
+            return Result.fail("geo index is not enabled");
+        }
+        // the rings scanned grow with the radius, keep it bounded
+        double maxMeters = Math.max(0, Math.min(radius, geoMaxRadius));
+        List<ShopGeoIndex.Hit> hits = shopGeoIndex.nearest(x, y, maxMeters, Math.min(limit, SystemConstants.MAX_PAGE_SIZE),
+                ShopGeoIndex.filter(typeId, minPrice, maxPrice, minScore));
+        return Result.ok(loadShops(hits));
+    }
+
+    /*
+    shops of the hits in the same order, with the distance of the hit. rows come from the shop cache
+    (L1, then one MGET), the db is only asked for the ones cached nowhere
+     */
+    private List<Shop> loadShops(List<ShopGeoIndex.Hit> hits) {
+        if (hits.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Long> ids = hits.stream().map(ShopGeoIndex.Hit::getId).collect(Collectors.toList());
+        Map<Long, Shop> shopMap = cacheClient.queryByIds(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                        missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                        RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES)
+                .stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+        List<Shop> shops = new ArrayList<>(hits.size());
+        for (ShopGeoIndex.Hit hit : hits) {
+            Shop cached = shopMap.get(hit.getId());
+            if (cached != null) {
+                // cached shops are shared, the distance goes on a copy
+                Shop shop = BeanUtil.copyProperties(cached, Shop.class);
+                shop.setDistance(hit.getDistance());
+                shops.add(shop);
+            }
+        }
+        return shops;
+    }
+
+    /*
+    ids of the shops within 5km of the cell of (x, y), nearest first. coordinates are rounded to
+    `cell-precision` decimals, the first request of a cell runs GEOSEARCH once and keeps the whole
+    sorted list for a short ttl, every page is a LRANGE on it, so a deep page costs the same as the first.
+    distances are from the cell center, so order and the 5km edge are approximate by the cell size.
+    an empty cell is kept as a list holding only the empty marker, so it is not searched again
+     */
+    private List<Long> queryNearbyShopIds(Integer typeId, double x, double y, int start, int stop) {
+        double scale = Math.pow(10, geoCellPrecision);
+        long cellX = Math.round(x * scale);
+        long cellY = Math.round(y * scale);
+        String cellKey = RedisConstants.SHOP_GEO_PAGE_KEY + typeId + ":" + cellX + ":" + cellY;
+        List<String> page = stringRedisTemplate.opsForList().range(cellKey, start, stop);
+        if (page == null || page.isEmpty()) {
+            if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(cellKey))) {
+                // past the last page
+                return Collections.emptyList();
+            }
+            List<String> all = buildGeoCell(typeId, cellX / scale, cellY / scale, cellKey);
+            page = all.subList(Math.min(start, all.size()), Math.min(stop + 1, all.size()));
+        }
+        return page.stream().filter(id -> !id.isEmpty()).map(Long::valueOf).collect(Collectors.toList());
+    }
+
+    /*
+    geosearch key bylonlat x y byradius 5 km asc, written to a temp key and renamed,
+    so concurrent builders of one cell never leave a doubled list
+     */
+    private List<String> buildGeoCell(Integer typeId, double x, double y, String cellKey) {
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(
+                RedisConstants.SHOP_GEO_KEY + typeId,
+                GeoReference.fromCoordinate(x, y),
+                new Distance(5000),
+                RedisGeoCommands.GeoRadiusCommandArgs.newGeoSearchArgs().sortAscending().limit(geoMaxResults));
+        List<String> ids = results == null ? Collections.emptyList() : results.getContent().stream()
+                .map(result -> result.getContent().getName())
+                .collect(Collectors.toList());
+        // a redis list can not be empty, an empty cell holds the empty marker
+        String[] values = ids.isEmpty() ? new String[]{""} : ids.toArray(new String[0]);
+        String tempKey = cellKey + ":" + UUID.randomUUID().toString(true);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            stringConnection.rPush(tempKey, values);
+            stringConnection.expire(tempKey, geoPageTtlSeconds);
+            stringConnection.rename(tempKey, cellKey);
+            return null;
+        });
+        return ids;
+    }
 }
@@ -1,32 +1,47 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.BooleanUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.IIdWorker;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillVoucherCatalog;
+import com.hmdp.utils.SoldOutVoucherCache;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.time.LocalDateTime;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.Collectors;
 @Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
@@ -34,7 +49,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IIdWorker idWorker;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
@@ -42,74 +57,457 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedissonClient redissonClient;
 
+    @Resource
+    private SoldOutVoucherCache soldOutVoucherCache;
+
+    @Resource
+    private SeckillVoucherCatalog seckillVoucherCatalog;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
 
+    private static final long CLAIM_BATCH_SIZE = 10;
+
+    private static final long RETRY_BATCH_SIZE = 10;
+
+    private static final int DRAIN_BATCH_SIZE = 100;
+
+    private static final int MAX_BACKOFF_SHIFT = 10;
+
+    private static final long ERROR_PAUSE_MS = 100;
+
+    // 懒加载注入自身的代理对象，消费者线程启动时可能还没有请求进来过，不能依赖AopContext
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
 //    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024*1024);
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    /**
+     * 消费者线程数，同一个消费者组 g1 下每个线程一个独立的消费者名，超过分片数的线程不启动
+     */
+    @Value("${hmdp.seckill.consumer-count:4}")
+    private int consumerCount;
+
+    /**
+     * 订单stream的分片数，按userId取模路由，1表示只用 stream.orders。每个分片同一时刻只有一个消费者，保证同一用户的订单按顺序落库
+     */
+    @Value("${hmdp.seckill.stream-shards:1}")
+    private int streamShards;
+
+    /**
+     * 消费者名前缀，多节点部署时每个节点必须不同，否则会共用同一个pending list
+     */
+    @Value("${hmdp.seckill.consumer-prefix:c}")
+    private String consumerPrefix;
+
+    /**
+     * pending消息空闲超过这个时间，就认为原消费者已经挂了，可以被其他消费者认领
+     */
+    @Value("${hmdp.seckill.claim-min-idle-ms:60000}")
+    private long claimMinIdleMs;
+
+    /**
+     * 每次最多读取的订单数，大于1时一批订单在一个事务里落库
+     */
+    @Value("${hmdp.seckill.batch-size:50}")
+    private int batchSize;
+
+    /**
+     * 没有订单时最多阻塞等待的时间
+     */
+    @Value("${hmdp.seckill.batch-wait-ms:200}")
+    private long batchWaitMs;
+
+    /**
+     * 是否在落库前加用户级别的分布式锁，tb_voucher_order 有 (user_id, voucher_id) 唯一索引后写入本身就是幂等的，默认不加锁
+     */
+    @Value("${hmdp.seckill.order-lock:false}")
+    private boolean orderLock;
+
+    /**
+     * 失败订单第一次重试前等待的时间，之后每次翻倍
+     */
+    @Value("${hmdp.seckill.retry-backoff-ms:1000}")
+    private long retryBackoffMs;
+
+    /**
+     * 最多投递次数，超过后进入死信stream
+     */
+    @Value("${hmdp.seckill.max-attempts:5}")
+    private int maxAttempts;
+
+    /**
+     * 热点券的订单扣完库存后超过这个时间还没进stream（节点在两步之间挂了），就重新入队
+     */
+    @Value("${hmdp.seckill.pending-recover-ms:30000}")
+    private long pendingRecoverMs;
+
+    private ExecutorService seckillOrderExecutor;
+
+    private final ScheduledExecutorService pendingRecoveryExecutor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("seckill-pending-", true));
 
     @PostConstruct
     private void init() {
-        // SECKILL_ORDER_EXECUTOR初始化完毕就自动执行这个方法，spring管理
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        for (int shard = 0; shard < streamShards; shard++) {
+            createGroupIfAbsent(streamKey(shard));
+        }
+        drainLegacyStream();
+        // 每个消费者一个线程，spring初始化完毕就自动开始消费
+        int consumers = Math.min(consumerCount, streamShards);
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumers, new NamedThreadFactory("seckill-order-", true));
+        for (int i = 0; i < consumers; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(consumerPrefix + (i + 1), assignedStreams(i, consumers)));
+        }
+        pendingRecoveryExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                requeueStalePending();
+            } catch (Exception e) {
+                log.error("failed to requeue pending seckill orders", e);
+            }
+        }, pendingRecoverMs, pendingRecoverMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        seckillOrderExecutor.shutdownNow();
+        pendingRecoveryExecutor.shutdownNow();
+    }
+
+    private String streamKey(int shard) {
+        return streamShards <= 1 ? RedisConstants.SECKILL_ORDER_STREAM : RedisConstants.SECKILL_ORDER_STREAM + ":" + shard;
+    }
+
+    /*
+    all orders of a user go to one shard, so they are read in the order they were queued
+     */
+    private String streamKeyOf(Long userId) {
+        return streamKey((int) Math.floorMod(userId, (long) streamShards));
+    }
+
+    /*
+    consumer i of n owns shards i, i+n, i+2n..., never two consumers on one shard
+     */
+    private List<String> assignedStreams(int consumerIndex, int consumers) {
+        List<String> streams = new ArrayList<>();
+        for (int shard = consumerIndex; shard < streamShards; shard += consumers) {
+            streams.add(streamKey(shard));
+        }
+        return streams;
+    }
+
+    /*
+    with more than one shard stream.orders is no longer read. entries left there by a single-stream
+    deployment, pending or not, are moved to the shard of their user once, then the old stream is deleted.
+    a crash in between leaves a copy in both, the second one is dropped as a replay of the first
+     */
+    private void drainLegacyStream() {
+        String legacy = RedisConstants.SECKILL_ORDER_STREAM;
+        if (streamShards <= 1 || !BooleanUtil.isTrue(stringRedisTemplate.hasKey(legacy))) {
+            return;
+        }
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_KEY + legacy);
+        if (!lock.tryLock()) {
+            // another node is draining it
+            return;
+        }
+        try {
+            int moved = 0;
+            while (true) {
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                        legacy, Range.unbounded(), RedisZSetCommands.Limit.limit().count(DRAIN_BATCH_SIZE));
+                if (records == null || records.isEmpty()) {
+                    break;
+                }
+                for (MapRecord<String, Object, Object> record : records) {
+                    Map<Object, Object> order = record.getValue();
+                    stringRedisTemplate.opsForStream().add(streamKeyOf(Long.valueOf(order.get("userId").toString())), order);
+                    stringRedisTemplate.opsForStream().delete(legacy, record.getId());
+                }
+                moved += records.size();
+            }
+            stringRedisTemplate.delete(legacy);
+            log.info("moved {} orders from {} to the shard streams", moved, legacy);
+        } catch (Exception e) {
+            // tried again on the next start
+            log.error("failed to drain {}", legacy, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void createGroupIfAbsent(String streamKey) {
+        try {
+            // XGROUP CREATE key g1 0 MKSTREAM
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    streamKey.getBytes(StandardCharsets.UTF_8), RedisConstants.SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // BUSYGROUP, group already exists
+            log.debug("consumer group of {} already exists", streamKey);
+        }
     }
 
+    /*
+    one consumer of group g1, reading its own shards.
+    a shard is read only while this thread holds its redisson lock (kept alive by the watchdog), so across
+    all nodes every shard has exactly one consumer and the orders of a user are created in queue order;
+    when a node dies its lock expires, another node takes the shard over and claims what it left pending.
+    the lua script lets at most one entry per (user, voucher) into the streams, and a redelivered entry
+    is dropped by the (user_id, voucher_id) unique key, so no two consumers can create the same order.
+    a failed entry stays in the pending list and is retried one by one with exponential backoff,
+    after maxAttempts deliveries it goes to the dead-letter stream
+     */
     private class VoucherOrderHandler implements Runnable {
-        String queueName = "stream.orders";
+        private final String consumerName;
+        private final Map<String, RLock> shardLocks = new LinkedHashMap<>();
+        private List<String> streams = Collections.emptyList();
+        private long lastClaimTime = System.currentTimeMillis();
+        private long lastRetryTime;
+
+        VoucherOrderHandler(String consumerName, List<String> assigned) {
+            this.consumerName = consumerName;
+            for (String stream : assigned) {
+                shardLocks.put(stream, redissonClient.getLock(RedisConstants.LOCK_KEY + stream));
+            }
+        }
+
+        /*
+        the assigned shards whose lock this thread holds now
+         */
+        private List<String> ownedStreams() {
+            List<String> owned = new ArrayList<>(shardLocks.size());
+            shardLocks.forEach((stream, lock) -> {
+                if (lock.isHeldByCurrentThread() || lock.tryLock()) {
+                    owned.add(stream);
+                }
+            });
+            return owned;
+        }
+
+        @SuppressWarnings("unchecked")
         @Override
         public void run() {
-            while (true) {
+            while (!Thread.currentThread().isInterrupted()) {
                 try {
+                    streams = ownedStreams();
+                    if (streams.isEmpty()) {
+                        // another node consumes these shards, stand by
+                        Thread.sleep(batchWaitMs);
+                        continue;
+                    }
+                    // orders left by this consumer before restart, or failed before
+                    retryPending();
                     // get order info
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                            Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofMillis(batchWaitMs)),
+                            streams.stream()
+                                    .map(stream -> StreamOffset.create(stream, ReadOffset.lastConsumed()))
+                                    .toArray(StreamOffset[]::new)
                     );
                     //check result valid or not
                     if (list == null || list.isEmpty()) {
+                        // idle, take over orders a dead consumer left pending
+                        claimIdlePending();
                         continue;
                     }
-                    // get msg
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // create order
-                    handleVoucherOrder(voucherOrder);
-                    // ack
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    // create orders and ack
+                    handleRecords(list);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 } catch (Exception e) {
+                    // entries stay pending, retryPending picks them up after the backoff
                     log.error("order exception", e);
-                    handlePendingList();
+                    pause();
                 }
             }
-        }
-
-        private void handlePendingList()  {
-            while (true) {
+            // hand the shards over at once instead of after the lock lease
+            shardLocks.values().forEach(lock -> {
                 try {
-                    // get order info of pending list
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-                    // if nothing, end loop
-                    if (list == null || list.isEmpty()) {
-                        break;
+                    if (lock.isHeldByCurrentThread()) {
+                        lock.unlock();
                     }
-                    // get msg
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // create order
-                    handleVoucherOrder(voucherOrder);
-                    // ack
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
                 } catch (Exception e) {
-                    log.error("pending list exception", e);
+                    log.debug("failed to release {}", lock.getName(), e);
+                }
+            });
+        }
+
+        // do not spin when redis or mysql is down
+        private void pause() {
+            try {
+                Thread.sleep(ERROR_PAUSE_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /*
+        XPENDING of this consumer, entries whose backoff has passed are delivered again with XCLAIM
+        (which counts the delivery) and handled one at a time, so one bad order can not fail the others
+         */
+        private void retryPending() {
+            long now = System.currentTimeMillis();
+            if (now - lastRetryTime < retryBackoffMs) {
+                return;
+            }
+            lastRetryTime = now;
+            for (String streamKey : streams) {
+                PendingMessages pending = stringRedisTemplate.opsForStream().pending(streamKey,
+                        Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, consumerName), Range.unbounded(), RETRY_BATCH_SIZE);
+                for (PendingMessage msg : pending) {
+                    if (msg.getTotalDeliveryCount() >= maxAttempts) {
+                        deadLetter(streamKey, msg.getId(), msg.getTotalDeliveryCount());
+                        continue;
+                    }
+                    long backoff = retryBackoffMs << Math.min(msg.getTotalDeliveryCount() - 1, MAX_BACKOFF_SHIFT);
+                    if (msg.getElapsedTimeSinceLastDelivery().toMillis() < backoff) {
+                        continue;
+                    }
+                    retry(streamKey, msg.getId());
+                }
+            }
+        }
+
+        private void retry(String streamKey, RecordId id) {
+            List<StringRecord> records = stringRedisTemplate.execute((RedisCallback<List<StringRecord>>) connection ->
+                    ((StringRedisConnection) connection).xClaim(streamKey, RedisConstants.SECKILL_ORDER_GROUP, consumerName,
+                            RedisStreamCommands.XClaimOptions.minIdleMs(0).ids(id)));
+            if (records == null || records.isEmpty()) {
+                // deleted from the stream, nothing to retry
+                stringRedisTemplate.opsForStream().acknowledge(streamKey, RedisConstants.SECKILL_ORDER_GROUP, id);
+                return;
+            }
+            Map<String, String> fields = records.get(0).getValue();
+            VoucherOrder voucherOrder = parseOrder(fields);
+            if (voucherOrder == null) {
+                // would fail the same way on every delivery
+                deadLetter(streamKey, id, 0, fields);
+                return;
+            }
+            try {
+                boolean created = handleVoucherOrder(voucherOrder);
+                seckillOrderStatus.update(Collections.singletonList(voucherOrder.getId()),
+                        created ? SeckillOrderStatus.CREATED : SeckillOrderStatus.FAILED);
+                stringRedisTemplate.opsForStream().acknowledge(streamKey, RedisConstants.SECKILL_ORDER_GROUP, id);
+            } catch (Exception e) {
+                log.error("retry of order {} in {} failed", id, streamKey, e);
+            }
+        }
+
+        private void deadLetter(String streamKey, RecordId id, long attempts) {
+            try {
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(streamKey, Range.closed(id.getValue(), id.getValue()));
+                if (records == null || records.isEmpty()) {
+                    stringRedisTemplate.opsForStream().acknowledge(streamKey, RedisConstants.SECKILL_ORDER_GROUP, id);
+                    return;
+                }
+                deadLetter(streamKey, id, attempts, records.get(0).getValue());
+            } catch (RuntimeException e) {
+                // the entry stays pending and is tried again on the next round
+                log.error("failed to read order {} in {} for the dlq", id, streamKey, e);
+            }
+        }
+
+        /*
+        copy the raw fields of the entry to stream.orders.dlq with where it came from, then ack it here.
+        the ack is in finally: an entry that can not be parsed or marked failed must not stay pending forever.
+        attempts 0: malformed, not delivered to the db
+         */
+        private void deadLetter(String streamKey, RecordId id, long attempts, Map<?, ?> fields) {
+            try {
+                Map<Object, Object> value = new HashMap<>(fields);
+                value.put("stream", streamKey);
+                value.put("recordId", id.getValue());
+                value.put("attempts", String.valueOf(attempts));
+                stringRedisTemplate.opsForStream().add(RedisConstants.SECKILL_ORDER_DLQ, value);
+                log.error("order {} in {} failed {} times, moved to {}", id, streamKey, attempts, RedisConstants.SECKILL_ORDER_DLQ);
+                Long orderId = parseId(fields.get("id"));
+                if (orderId != null) {
+                    seckillOrderStatus.update(Collections.singletonList(orderId), SeckillOrderStatus.FAILED);
+                }
+            } catch (RuntimeException e) {
+                log.error("failed to move order {} in {} to {}, dropped: {}", id, streamKey, RedisConstants.SECKILL_ORDER_DLQ, fields, e);
+            } finally {
+                stringRedisTemplate.opsForStream().acknowledge(streamKey, RedisConstants.SECKILL_ORDER_GROUP, id);
+            }
+        }
+
+        private void handleRecords(List<MapRecord<String, Object, Object>> records) {
+            // malformed entries go to the dlq at once instead of failing the batch on every delivery
+            List<MapRecord<String, Object, Object>> valid = new ArrayList<>(records.size());
+            List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+            for (MapRecord<String, Object, Object> record : records) {
+                VoucherOrder voucherOrder = parseOrder(record.getValue());
+                if (voucherOrder == null) {
+                    deadLetter(record.getStream(), record.getId(), 0, record.getValue());
+                } else {
+                    valid.add(record);
+                    voucherOrders.add(voucherOrder);
+                }
+            }
+            if (valid.isEmpty()) {
+                return;
+            }
+            if (batchSize <= 1) {
+                for (int i = 0; i < valid.size(); i++) {
+                    VoucherOrder voucherOrder = voucherOrders.get(i);
+                    boolean created = handleVoucherOrder(voucherOrder);
+                    seckillOrderStatus.update(Collections.singletonList(voucherOrder.getId()),
+                            created ? SeckillOrderStatus.CREATED : SeckillOrderStatus.FAILED);
+                    stringRedisTemplate.opsForStream().acknowledge(valid.get(i).getStream(), RedisConstants.SECKILL_ORDER_GROUP, valid.get(i).getId());
+                }
+                return;
+            }
+            // one transaction for the whole batch
+            Set<Long> created = proxy.createVoucherOrders(voucherOrders).stream()
+                    .map(VoucherOrder::getId).collect(Collectors.toSet());
+            List<Long> failed = voucherOrders.stream()
+                    .map(VoucherOrder::getId).filter(id -> !created.contains(id)).collect(Collectors.toList());
+            seckillOrderStatus.update(created, SeckillOrderStatus.CREATED);
+            seckillOrderStatus.update(failed, SeckillOrderStatus.FAILED);
+            // one XACK per stream with all ids, after the transaction committed
+            Map<String, List<RecordId>> idsOfStream = valid.stream().collect(Collectors.groupingBy(
+                    MapRecord::getStream, Collectors.mapping(MapRecord::getId, Collectors.toList())));
+            idsOfStream.forEach((stream, ids) -> stringRedisTemplate.opsForStream()
+                    .acknowledge(stream, RedisConstants.SECKILL_ORDER_GROUP, ids.toArray(new RecordId[0])));
+        }
+
+        /*
+        XAUTOCLAIM is not available in this client, so XPENDING + XCLAIM:
+        entries of other consumers idle longer than claimMinIdleMs move into our pending list
+         */
+        private void claimIdlePending() {
+            long now = System.currentTimeMillis();
+            if (now - lastClaimTime < claimMinIdleMs) {
+                return;
+            }
+            lastClaimTime = now;
+            for (String streamKey : streams) {
+                PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                        streamKey, RedisConstants.SECKILL_ORDER_GROUP, Range.unbounded(), CLAIM_BATCH_SIZE);
+                RecordId[] ids = pending.stream()
+                        .filter(msg -> !consumerName.equals(msg.getConsumerName()))
+                        .filter(msg -> msg.getElapsedTimeSinceLastDelivery().toMillis() >= claimMinIdleMs)
+                        .map(PendingMessage::getId)
+                        .toArray(RecordId[]::new);
+                if (ids.length == 0) {
+                    continue;
+                }
+                // min-idle is checked again by redis, so two consumers can not claim the same entry
+                List<RecordId> claimedIds = stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                        connection.streamCommands().xClaimJustId(streamKey.getBytes(StandardCharsets.UTF_8),
+                                RedisConstants.SECKILL_ORDER_GROUP, consumerName,
+                                RedisStreamCommands.XClaimOptions.minIdleMs(claimMinIdleMs).ids(ids)));
+                if (claimedIds != null && !claimedIds.isEmpty()) {
+                    // handled by retryPending like our own failed entries
+                    log.info("consumer {} claimed {} idle orders from {}", consumerName, claimedIds.size(), streamKey);
                 }
             }
         }
@@ -131,17 +529,21 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        }
 //    }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
+    private boolean handleVoucherOrder(VoucherOrder voucherOrder) {
+        if (!orderLock) {
+            // idempotent insert, no lock needed
+            return proxy.createVoucherOrder(voucherOrder);
+        }
         Long userId = voucherOrder.getUserId();
         RLock lock = redissonClient.getLock("lock:order:" + userId);
         boolean isLocked = lock.tryLock();
         if (!isLocked) {
             log.error("no multiple order for a user");
-            return;
+            return false;
         }
 
         try {
-            proxy.createVoucherOrder(voucherOrder);
+            return proxy.createVoucherOrder(voucherOrder);
         } finally {
             lock.unlock();
         }
@@ -149,25 +551,129 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
     }
     @Override
     public Result seckillVoucher(Long voucherId) {
-        long orderId = redisIdWorker.nextId("order");
+        // time window from the local catalog
+        SeckillVoucherCatalog.Entry voucher = seckillVoucherCatalog.get(voucherId);
+        if (voucher == null) {
+            return Result.fail("seckill voucher does not exist!");
+        }
+        LocalDateTime now = LocalDateTime.now();
+        if (now.isBefore(voucher.getBeginTime())) {
+            return Result.fail("seckill has not started");
+        }
+        if (now.isAfter(voucher.getEndTime())) {
+            return Result.fail("seckill has ended");
+        }
+        // sold out on this node already, no need to ask redis
+        if (soldOutVoucherCache.isSoldOut(voucherId)) {
+            return Result.fail("no stock");
+        }
+        long epoch = soldOutVoucherCache.epoch();
+        long orderId = idWorker.nextId("order");
         Long userId = UserHolder.getUser().getId();
-        // lua
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(), voucherId.toString(), userId.toString(), String.valueOf(orderId));
-        // 0 success, 1 no stock, 2 one user multiple order
-        int res = result.intValue();
+        // 0 success, 1 no stock, 2 one user multiple order, 3 sharded stock still moving
+        int res = voucher.getStockShards() > 1
+                ? seckillHotVoucher(voucherId, userId, orderId, voucher.getStockShards())
+                : stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(),
+                        voucherId.toString(), userId.toString(), String.valueOf(orderId), streamKeyOf(userId),
+                        SeckillOrderStatus.key(orderId), String.valueOf(SeckillOrderStatus.ttlSeconds())).intValue();
+        if (res == 1) {
+            // for sharded stock 1 already means every shard read 0
+            soldOutVoucherCache.markSoldOut(voucherId, epoch);
+        }
+        if (res == SeckillStockShards.BUSY) {
+            return Result.fail("too many requests, please retry later");
+        }
         if (res != 0) {
             return Result.fail(res == 1? "no stock" : "multiple order for a user");
         }
-        // 获得代理对象，因为spring通过动态代理管理，这样才能使得事务注解不失效
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
         return Result.ok(orderId);
     }
 
+    /*
+    hot voucher with sharded stock. the stream may sit in another cluster slot than the stock shard,
+    so the order is queued here instead of inside the script. the script keeps it in the pending hash
+    of the shard until it is in the stream; the stock is given back if queuing fails, and an order
+    left pending by a crash is queued by requeueStalePending
+     */
+    private int seckillHotVoucher(Long voucherId, Long userId, long orderId, int shards) {
+        int res = seckillStockShards.tryAcquire(voucherId, userId, orderId, shards);
+        if (res != 0) {
+            return res;
+        }
+        try {
+            // queued before the xadd, a consumer may finish the order before the next line runs
+            seckillOrderStatus.queued(orderId, userId);
+            stringRedisTemplate.opsForStream().add(streamKeyOf(userId), orderRecord(voucherId, userId, orderId));
+        } catch (Exception e) {
+            seckillStockShards.release(voucherId, userId, orderId, shards);
+            seckillOrderStatus.update(Collections.singletonList(orderId), SeckillOrderStatus.FAILED);
+            throw e;
+        }
+        seckillStockShards.confirm(voucherId, userId, orderId, shards);
+        return 0;
+    }
+
+    /*
+    orders of hot vouchers whose node died between taking the stock and queuing them.
+    a copy already queued is dropped by the consumer as a replay
+     */
+    private void requeueStalePending() {
+        for (SeckillVoucherCatalog.Entry voucher : seckillVoucherCatalog.entries()) {
+            int shards = voucher.getStockShards();
+            if (shards <= 1) {
+                continue;
+            }
+            Long voucherId = voucher.getVoucherId();
+            seckillStockShards.stalePending(voucherId, shards, pendingRecoverMs).forEach((orderId, userId) -> {
+                seckillOrderStatus.queuedIfAbsent(orderId, userId);
+                stringRedisTemplate.opsForStream().add(streamKeyOf(userId), orderRecord(voucherId, userId, orderId));
+                seckillStockShards.confirm(voucherId, userId, orderId, shards);
+                log.warn("order {} of voucher {} was left pending, queued again", orderId, voucherId);
+            });
+        }
+    }
+
+    /*
+    the order of a stream entry, null when id, userId or voucherId is missing or not a number
+     */
+    private static VoucherOrder parseOrder(Map<?, ?> fields) {
+        Long id = parseId(fields.get("id"));
+        Long userId = parseId(fields.get("userId"));
+        Long voucherId = parseId(fields.get("voucherId"));
+        if (id == null || userId == null || voucherId == null) {
+            return null;
+        }
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(id);
+        voucherOrder.setUserId(userId);
+        voucherOrder.setVoucherId(voucherId);
+        return voucherOrder;
+    }
+
+    private static Long parseId(Object value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(value.toString().trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Map<String, String> orderRecord(Long voucherId, Long userId, long orderId) {
+        Map<String, String> order = new HashMap<>(4);
+        order.put("userId", userId.toString());
+        order.put("voucherId", voucherId.toString());
+        order.put("id", String.valueOf(orderId));
+        return order;
+    }
+
     // based on blocking queue
 //    @Override
 //    public Result seckillVoucher(Long voucherId) {
@@ -194,26 +700,118 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        return Result.ok(orderId);
 //    }
 
+    /*
+    move up to `count` dead letters back to the stream they came from
+     */
+    @Override
+    public Result replayDeadLetters(Integer count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                RedisConstants.SECKILL_ORDER_DLQ, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        if (records == null || records.isEmpty()) {
+            return Result.ok(0);
+        }
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<Object, Object> value = record.getValue();
+            Map<Object, Object> order = new HashMap<>(4);
+            order.put("userId", value.get("userId"));
+            order.put("voucherId", value.get("voucherId"));
+            order.put("id", value.get("id"));
+            String streamKey = value.get("stream").toString();
+            seckillOrderStatus.queued(Long.valueOf(value.get("id").toString()), Long.valueOf(value.get("userId").toString()));
+            stringRedisTemplate.opsForStream().add(streamKey, order);
+            stringRedisTemplate.opsForStream().delete(RedisConstants.SECKILL_ORDER_DLQ, record.getId());
+        }
+        return Result.ok(records.size());
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        // only the user of the order can see it
+        String status = seckillOrderStatus.get(orderId, UserHolder.getUser().getId());
+        return status == null ? Result.fail("order does not exist or has expired!") : Result.ok(status);
+    }
+
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
-        // check one user - one voucher order
-        Long userId = voucherOrder.getUserId();
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        if (count > 0) {
-            log.error("user has already bought");
-            return;
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {
+        // check one user - one voucher order: insert ignore on the (user_id, voucher_id) unique key,
+        // a replayed order id or a second order of the same user inserts nothing
+        int inserted = getBaseMapper().insertIgnore(voucherOrder);
+        if (inserted == 0) {
+            // a replay of an order already created is still a success
+            if (getById(voucherOrder.getId()) != null) {
+                log.debug("order {} replayed, already created", voucherOrder.getId());
+                return true;
+            }
+            log.info("user has already bought, order {}", voucherOrder.getId());
+            return false;
         }
         //5，扣减库存
-        boolean success = seckillVoucherService.update()
-                .setSql("stock= stock -1")
-                .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0)
-                .update();
+        boolean success = seckillVoucherService.decreaseStock(voucherOrder.getVoucherId(), 1);
         if (!success) {
-            //扣减库存
+            //扣减库存失败，回滚刚插入的订单
             log.error("no stock");
-            return;
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return false;
         }
+        return true;
+    }
 
-        save(voucherOrder);
+    /*
+    batch version of createVoucherOrder: one duplicate check for all (user, voucher) pairs,
+    one stock decrement per voucher and one multi-row insert. returns the orders that are in db now
+     */
+    @Override
+    @Transactional
+    public List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // check one user - one voucher order, in db and inside the batch itself
+        Set<Long> userIds = voucherOrders.stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        Set<Long> voucherIds = voucherOrders.stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet());
+        Map<String, Long> bought = query().select("id", "user_id", "voucher_id")
+                .in("user_id", userIds).in("voucher_id", voucherIds).list()
+                .stream()
+                .collect(Collectors.toMap(order -> order.getUserId() + ":" + order.getVoucherId(), VoucherOrder::getId, (a, b) -> a));
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = new HashMap<>();
+        // replays of orders created before
+        List<VoucherOrder> existing = new ArrayList<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            Long boughtId = bought.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder.getId());
+            if (boughtId != null) {
+                if (boughtId.equals(voucherOrder.getId())) {
+                    existing.add(voucherOrder);
+                } else {
+                    log.info("user has already bought, order {}", voucherOrder.getId());
+                }
+                continue;
+            }
+            ordersOfVoucher.computeIfAbsent(voucherOrder.getVoucherId(), id -> new ArrayList<>()).add(voucherOrder);
+        }
+        // decrease stock once per voucher
+        List<VoucherOrder> created = new ArrayList<>(voucherOrders.size());
+        ordersOfVoucher.forEach((voucherId, orders) -> {
+            boolean success = seckillVoucherService.decreaseStock(voucherId, orders.size());
+            if (success) {
+                created.addAll(orders);
+                return;
+            }
+            // not enough stock for all of them, keep as many as the stock allows
+            for (VoucherOrder order : orders) {
+                boolean one = seckillVoucherService.decreaseStock(voucherId, 1);
+                if (!one) {
+                    log.error("no stock, order {}", order.getId());
+                    break;
+                }
+                created.add(order);
+            }
+        });
+        if (!created.isEmpty()) {
+            int inserted = getBaseMapper().insertBatch(created);
+            if (inserted < created.size()) {
+                // another consumer wrote some of these orders after the duplicate check, the stock we took
+                // for them is wrong. roll back, the batch is redelivered and the duplicate check drops them
+                throw new IllegalStateException("concurrent duplicate orders in batch, inserted " + inserted + " of " + created.size());
+            }
+        }
+        created.addAll(existing);
+        return created;
     }
 }
@@ -8,9 +8,14 @@ import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillVoucherCatalog;
+import com.hmdp.utils.SoldOutVoucherCache;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
@@ -30,6 +35,12 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SoldOutVoucherCache soldOutVoucherCache;
+    @Resource
+    private SeckillVoucherCatalog seckillVoucherCatalog;
+    @Resource
+    private SeckillStockShards seckillStockShards;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -51,7 +62,49 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        // store into redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY, voucher.getStock().toString());
+        // store into redis, hot vouchers split the stock into shards
+        Integer shards = voucher.getStockShards();
+        if (shards != null && shards > 1) {
+            seckillStockShards.init(voucher.getId(), voucher.getStock(), shards);
+        } else {
+            stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        }
+        // load into the catalog of every node once committed
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                seckillVoucherCatalog.publishAdded(voucher.getId());
+            }
+        });
+    }
+
+    @Override
+    @Transactional
+    public Result addSeckillStock(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("count must be positive");
+        }
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("seckill voucher does not exist!");
+        }
+        // only hand out the stock once the db row has it, a rollback must not leave extra stock in redis
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                String shards = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_SHARDS_KEY + voucherId);
+                if (shards != null && Integer.parseInt(shards) > 1) {
+                    seckillStockShards.add(voucherId, count, Integer.parseInt(shards));
+                } else {
+                    stringRedisTemplate.opsForValue().increment(RedisConstants.SECKILL_STOCK_KEY + voucherId, count);
+                }
+                // clear the local sold-out flag on every node
+                soldOutVoucherCache.publishReplenished(voucherId);
+            }
+        });
+        return Result.ok();
     }
 }
@@ -0,0 +1,276 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+compact binary format for flat entities (Shop, Blog, User ...), no field names in the payload:
+    0xB1 | schema fingerprint (int) | null bitmap | non-null fields in name order
+integers are zigzag varints, strings are varint length + utf-8, times are epoch second + nano.
+the field layout of each class is read by reflection once and cached. a class with a field of
+another type is written with the json codec instead, and json values (written before this codec
+was enabled) are still readable, so switching codecs needs no flush
+ */
+@Slf4j
+public class BinaryCacheCodec implements CacheCodec {
+    private static final byte MAGIC = (byte) 0xB1;
+
+    private final CacheCodec fallback = new JsonCacheCodec();
+
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] encode(Object value) {
+        Schema schema = schema(value.getClass());
+        if (!schema.supported) {
+            return fallback.encode(value);
+        }
+        Output out = new Output();
+        out.write(MAGIC);
+        out.writeInt(schema.fingerprint);
+        try {
+            Object[] values = new Object[schema.fields.length];
+            byte[] nulls = new byte[(values.length + 7) >>> 3];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = schema.fields[i].get(value);
+                if (values[i] == null) {
+                    nulls[i >>> 3] |= 1 << (i & 7);
+                }
+            }
+            out.write(nulls, 0, nulls.length);
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    schema.types[i].write(out, values[i]);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        if (bytes[0] != MAGIC) {
+            return fallback.decode(bytes, type);
+        }
+        Schema schema = schema(type);
+        if (!schema.supported) {
+            return null;
+        }
+        try {
+            // a truncated value fails here already, and is a miss like any other unreadable one
+            Input in = new Input(bytes, 1);
+            if (in.readInt() != schema.fingerprint) {
+                // written by an older version of the class
+                return null;
+            }
+            R value = type.cast(schema.constructor.newInstance());
+            int nullBytes = (schema.fields.length + 7) >>> 3;
+            int nullsAt = in.pos;
+            in.pos += nullBytes;
+            for (int i = 0; i < schema.fields.length; i++) {
+                boolean isNull = (bytes[nullsAt + (i >>> 3)] & (1 << (i & 7))) != 0;
+                schema.fields[i].set(value, isNull ? null : schema.types[i].read(in));
+            }
+            return value;
+        } catch (Exception e) {
+            log.warn("unreadable binary cache value of {}", type.getSimpleName(), e);
+            return null;
+        }
+    }
+
+    private Schema schema(Class<?> type) {
+        return schemas.computeIfAbsent(type, Schema::new);
+    }
+
+    private static class Schema {
+        private final Field[] fields;
+        private final FieldType[] types;
+        private final int fingerprint;
+        private final boolean supported;
+        private Constructor<?> constructor;
+
+        private Schema(Class<?> type) {
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)) {
+                        list.add(field);
+                    }
+                }
+            }
+            list.sort(Comparator.comparing(Field::getName));
+            this.fields = list.toArray(new Field[0]);
+            this.types = new FieldType[fields.length];
+            boolean ok = true;
+            StringBuilder signature = new StringBuilder(type.getName());
+            for (int i = 0; i < fields.length; i++) {
+                types[i] = FieldType.of(fields[i].getType());
+                ok &= types[i] != null;
+                fields[i].setAccessible(true);
+                signature.append(';').append(fields[i].getName()).append(':').append(fields[i].getType().getName());
+            }
+            try {
+                constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                ok = false;
+            }
+            this.supported = ok;
+            this.fingerprint = signature.toString().hashCode();
+        }
+    }
+
+    private enum FieldType {
+        LONG {
+            void write(Output out, Object v) { out.writeVarLong(zigzag((Long) v)); }
+            Object read(Input in) { return unzigzag(in.readVarLong()); }
+        },
+        INT {
+            void write(Output out, Object v) { out.writeVarLong(zigzag((Integer) v)); }
+            Object read(Input in) { return (int) unzigzag(in.readVarLong()); }
+        },
+        DOUBLE {
+            void write(Output out, Object v) { out.writeLong(Double.doubleToLongBits((Double) v)); }
+            Object read(Input in) { return Double.longBitsToDouble(in.readLong()); }
+        },
+        BOOLEAN {
+            void write(Output out, Object v) { out.write((Boolean) v ? 1 : 0); }
+            Object read(Input in) { return in.buf[in.pos++] != 0; }
+        },
+        STRING {
+            void write(Output out, Object v) {
+                byte[] b = ((String) v).getBytes(StandardCharsets.UTF_8);
+                out.writeVarLong(b.length);
+                out.write(b, 0, b.length);
+            }
+            Object read(Input in) {
+                int len = (int) in.readVarLong();
+                String s = new String(in.buf, in.pos, len, StandardCharsets.UTF_8);
+                in.pos += len;
+                return s;
+            }
+        },
+        DATE_TIME {
+            void write(Output out, Object v) {
+                LocalDateTime t = (LocalDateTime) v;
+                out.writeVarLong(zigzag(t.toEpochSecond(ZoneOffset.UTC)));
+                out.writeVarLong(t.getNano());
+            }
+            Object read(Input in) {
+                long seconds = unzigzag(in.readVarLong());
+                return LocalDateTime.ofEpochSecond(seconds, (int) in.readVarLong(), ZoneOffset.UTC);
+            }
+        },
+        DATE {
+            void write(Output out, Object v) { out.writeVarLong(zigzag(((LocalDate) v).toEpochDay())); }
+            Object read(Input in) { return LocalDate.ofEpochDay(unzigzag(in.readVarLong())); }
+        };
+
+        abstract void write(Output out, Object v);
+
+        abstract Object read(Input in);
+
+        /*
+        boxed types only, a primitive field can not take the null of the bitmap
+         */
+        static FieldType of(Class<?> type) {
+            if (type == Long.class) {
+                return LONG;
+            } else if (type == Integer.class) {
+                return INT;
+            } else if (type == Double.class) {
+                return DOUBLE;
+            } else if (type == Boolean.class) {
+                return BOOLEAN;
+            } else if (type == String.class) {
+                return STRING;
+            } else if (type == LocalDateTime.class) {
+                return DATE_TIME;
+            } else if (type == LocalDate.class) {
+                return DATE;
+            }
+            return null;
+        }
+
+        static long zigzag(long v) {
+            return (v << 1) ^ (v >> 63);
+        }
+
+        static long unzigzag(long v) {
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+
+    private static class Output extends ByteArrayOutputStream {
+        private Output() {
+            super(128);
+        }
+
+        private void writeInt(int v) {
+            write(v >>> 24);
+            write(v >>> 16);
+            write(v >>> 8);
+            write(v);
+        }
+
+        private void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        private void writeVarLong(long v) {
+            while ((v & ~0x7FL) != 0) {
+                write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            write((int) v);
+        }
+    }
+
+    private static class Input {
+        private final byte[] buf;
+        private int pos;
+
+        private Input(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        private int readInt() {
+            int v = (buf[pos] & 0xFF) << 24 | (buf[pos + 1] & 0xFF) << 16 | (buf[pos + 2] & 0xFF) << 8 | (buf[pos + 3] & 0xFF);
+            pos += 4;
+            return v;
+        }
+
+        private long readLong() {
+            return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        private long readVarLong() {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buf[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+        }
+    }
+}
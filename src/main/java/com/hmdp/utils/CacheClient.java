@@ -1,16 +1,44 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.RandomUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
-import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Component
@@ -18,90 +46,668 @@ public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    private final CacheCodec cacheCodec;
+
+    private final HotKeyDetector hotKeyDetector;
+
+    private static final byte LOGICAL = 'L';
+    private static final int LOGICAL_HEADER = 9;
+
+    /*
+    optional in-process L1 in front of redis (L2), holding deserialized objects.
+    deletes go through delete(key) which broadcasts the key so every node drops its L1 copy
+     */
+    private final Cache<String, Object> localCache;
+
+    /**
+     * L1 中代表数据库里不存在的值
+     */
+    private static final Object NULL_VALUE = new Object();
+
+    private static final int GENERATION_STRIPES = 4096;
+
+    /**
+     * L1 失效代数，按key哈希分段，失效时加1。读之前记下代数，变了就不写L1，避免把广播之前读到的旧值放回去
+     */
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    /*
+    background rebuilds (logical expire, early expiration), bounded: when the queue is full the
+    current value keeps being served
+     */
+    private static final ExecutorService CACHE_REBUILD_EXECUTOR = new ThreadPoolExecutor(
+            2, 4, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1000),
+            new NamedThreadFactory("cache-rebuild-", true), new ThreadPoolExecutor.AbortPolicy());
+
+    private static final byte EARLY = 'X';
+    private static final int EARLY_HEADER = 13;
+
+    /**
+     * 本节点正在重建的key，同一个key同时只提交一个重建任务
+     */
+    private final Set<String> rebuildingKeys = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 本节点正在从数据库加载的key，并发的miss共用同一个future
+     */
+    private final Map<String, CompletableFuture<Object>> loadingKeys = new ConcurrentHashMap<>();
+
+    private static final int MUTEX_RETRY_TIMES = 20;
+    private static final long MUTEX_RETRY_INTERVAL_MS = 50;
+
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    private final LongAdder redisHits = new LongAdder();
+    private final LongAdder redisMisses = new LongAdder();
+    private final LongAdder earlyRefreshes = new LongAdder();
+
+    /**
+     * xfetch 提前刷新的激进程度，大于1更早刷新
+     */
+    @Value("${hmdp.cache.xfetch-beta:1.0}")
+    private double xfetchBeta;
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate,
+                       CacheCodec cacheCodec,
+                       HotKeyDetector hotKeyDetector,
+                       RedisMessageListenerContainer redisMessageListenerContainer,
+                       @Value("${hmdp.cache.l1.enabled:true}") boolean localCacheEnabled,
+                       @Value("${hmdp.cache.l1.max-size:10000}") long localCacheMaxSize,
+                       @Value("${hmdp.cache.l1.ttl-seconds:60}") long localCacheTtlSeconds) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheCodec = cacheCodec;
+        this.hotKeyDetector = hotKeyDetector;
+        if (!localCacheEnabled) {
+            this.localCache = null;
+            return;
+        }
+        this.localCache = Caffeine.newBuilder()
+                .maximumSize(localCacheMaxSize)
+                .expireAfterWrite(localCacheTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        // one key, or several separated by '\n' from deleteAll
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            List<String> keys = Arrays.asList(new String(message.getBody(), StandardCharsets.UTF_8).split("\n"));
+            dropLocal(keys);
+            keys.forEach(hotKeyDetector::invalidate);
+        }, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        byte[] raw = cacheCodec.encode(value);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.stringCommands()
+                .set(rawKey(key), raw, Expiration.from(time, unit), RedisStringCommands.SetOption.upsert()));
+    }
+
+    /*
+    no redis ttl, the expire time is stored in front of the value and checked by queryWithLogicalExpire:
+        'L' | expire epoch millis (long) | codec bytes
+     */
+    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
+        byte[] wrapped = wrapLogical(cacheCodec.encode(value), System.currentTimeMillis() + unit.toMillis(time));
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.stringCommands().set(rawKey(key), wrapped));
+    }
+
+    /*
+    delete from redis and from the L1 of every node
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        hotKeyDetector.invalidate(key);
+        invalidateLocal(key);
+    }
+
+    /*
+    batch delete, one DEL and one invalidation message for all keys
+     */
+    public void deleteAll(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.delete(keys);
+        keys.forEach(hotKeyDetector::invalidate);
+        invalidateLocal(keys);
     }
 
     public <R,ID> R queryByIdWithoutCachePenetration(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
-        // 1. try to get from cache
-        String objectJson = stringRedisTemplate.opsForValue().get(key);
-        // in cache and valid
-        if (StrUtil.isNotBlank(objectJson)) {
-            return JSONUtil.toBean(objectJson, type);
+        // 0. try L1
+        Object local = getLocal(key);
+        if (local != null) {
+            return local == NULL_VALUE ? null : type.cast(local);
         }
-        // 2. in cache(not null) but is "", which means invalid id
-        if ("".equals(objectJson)) {
-            return null;
+        // an invalidation from now on wins over what this read puts into L1
+        long generation = generation(key);
+        // 1. try to get from cache
+        Object cached = decode(getFromRedis(key), type);
+        // in cache and valid, or 2. the null marker "", which means invalid id
+        if (cached != null) {
+            return putLocal(key, generation, cached == NULL_VALUE ? null : type.cast(cached));
         }
         // 3. not in cache -> get from database and build cache
         R r = dbFallback.apply(id);
         if (r == null) {
             // write null into redis
             stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
+            return putLocal(key, generation, null);
         }
         // 3. store in cache
         long ttl = RandomUtil.randomLong(RedisConstants.CACHE_SHOP_TTL, RedisConstants.CACHE_SHOP_MAX_TTL);
         this.set(key, r, ttl, TimeUnit.MINUTES);
-        return r;
+        return putLocal(key, generation, r);
     }
 
      /*
-    avoid cache breakdown / hot key invalid
+    avoid cache breakdown / hot key invalid.
+    concurrent misses of one key on this node share a single load (single flight), and only that load
+    takes the redis mutex, so each node asks for the lock once instead of every waiting thread
      */
      public <R,ID> R queryByIdByMutexWithoutCacheBreakdown(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
          String key = keyPrefix + id;
-         // 1. try to get from cache
-         String objectJson = stringRedisTemplate.opsForValue().get(key);
-         // in cache and valid
-         if (StrUtil.isNotBlank(objectJson)) {
-             return JSONUtil.toBean(objectJson, type);
+         // 0. try L1
+         Object local = getLocal(key);
+         if (local != null) {
+             return local == NULL_VALUE ? null : type.cast(local);
          }
-         // 2. in cache(not null) but is "", which means invalid id
-         if ("".equals(objectJson)) {
-             return null;
-         }
-         // 3. not in cache -> get from database and build cache
-         String lockKey = RedisConstants.LOCK_KEY + keyPrefix + id;
-         R r = null;
-         try {
-             boolean isLock = tryLock(lockKey);
-             if (!isLock) {
-                 // sleep and retry
-                 Thread.sleep(50);
-                 return queryByIdByMutexWithoutCacheBreakdown(keyPrefix, id, type, dbFallback, time, unit);
-             }
-             r = dbFallback.apply(id);
-             if (r == null) {
-                 // write null into redis
-                 stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                 return null;
-             }
-             // store in cache
-             long ttl = RandomUtil.randomLong(RedisConstants.CACHE_SHOP_TTL, RedisConstants.CACHE_SHOP_MAX_TTL);
-             this.set(key, r, ttl, TimeUnit.MINUTES);
-         } catch (Exception e) {
-             throw new RuntimeException(e);
-         } finally {
-             unlock(lockKey);
+         // an invalidation from now on wins over what this read puts into L1
+         long generation = generation(key);
+         // 1. try to get from cache
+         Object cached = decode(getFromRedis(key), type);
+         // in cache and valid, or 2. the null marker "", which means invalid id
+         if (cached != null) {
+             return putLocal(key, generation, cached == NULL_VALUE ? null : type.cast(cached));
          }
-         return r;
+         // 3. not in cache -> join the load already running on this node, or start it
+         return putLocal(key, generation, singleFlight(key, type, () -> loadWithMutex(key, id, type, dbFallback)));
      }
 
     /*
-    using redis setnx to achieve the goal of mutex lock
+    concurrent callers for one key on this node share a single load
+     */
+    private <R> R singleFlight(String key, Class<R> type, Supplier<R> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = loadingKeys.putIfAbsent(key, future);
+        if (running != null) {
+            return type.cast(await(running, key));
+        }
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loadingKeys.remove(key, future);
+        }
+    }
+
+    /*
+    rebuild under the redis mutex. when another node holds it, poll redis for its result a few times
+    (a loop, not recursion), and if it is still not there read the db directly
+     */
+    private <R,ID> R loadWithMutex(String key, ID id, Class<R> type, Function<ID, R> dbFallback) {
+        return loadWithMutex(key, id, type, dbFallback, false, r -> {
+            long ttl = RandomUtil.randomLong(RedisConstants.CACHE_SHOP_TTL, RedisConstants.CACHE_SHOP_MAX_TTL);
+            this.set(key, r, ttl, TimeUnit.MINUTES);
+        });
+    }
+
+    /*
+    logical: the value is read in logical expire format, store writes what was loaded
+     */
+    private <R,ID> R loadWithMutex(String key, ID id, Class<R> type, Function<ID, R> dbFallback, boolean logical, Consumer<R> store) {
+        String lockKey = RedisConstants.LOCK_KEY + key;
+        String token = UUID.randomUUID().toString(true);
+        for (int i = 0; i < MUTEX_RETRY_TIMES; i++) {
+            if (tryLock(lockKey, token)) {
+                try {
+                    // double check, the previous holder may have just written it
+                    Object cached = decode(logical ? unwrap(readBytes(key)) : readBytes(key), type);
+                    if (cached != null) {
+                        return cached == NULL_VALUE ? null : type.cast(cached);
+                    }
+                    R r = dbFallback.apply(id);
+                    if (r == null) {
+                        // write null into redis
+                        stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+                        return null;
+                    }
+                    // store in cache
+                    store.accept(r);
+                    return r;
+                } finally {
+                    unlock(lockKey, token);
+                }
+            }
+            ThreadUtil.sleep(MUTEX_RETRY_INTERVAL_MS);
+            Object cached = decode(logical ? unwrap(readBytes(key)) : readBytes(key), type);
+            if (cached != null) {
+                return cached == NULL_VALUE ? null : type.cast(cached);
+            }
+        }
+        log.warn("waited too long for the rebuild of {}, read db directly", key);
+        return dbFallback.apply(id);
+    }
+
+    private Object await(CompletableFuture<Object> future, String key) {
+        try {
+            return future.get(MUTEX_RETRY_TIMES * MUTEX_RETRY_INTERVAL_MS * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("failed to load " + key, e.getCause());
+        } catch (TimeoutException e) {
+            throw new RuntimeException("timeout waiting for the load of " + key, e);
+        }
+    }
+
+    /*
+    probabilistic early expiration (xfetch). the value is stored with the time its load took (delta)
+    and its expire time:
+        'X' | delta millis (int) | expire epoch millis (long) | codec bytes
+    a reader refreshes it in the background when now - delta * beta * ln(rand) >= expire, which gets
+    likelier as the expiry approaches and the more expensive the load is, so a hot key is rebuilt by
+    one reader before anyone sees a miss, with no lock. a real miss is loaded once per node (single
+    flight); a value written by another mode is served until its ttl
+     */
+    public <R,ID> R queryWithEarlyExpiration(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        // 0. try L1
+        Object local = getLocal(key);
+        if (local != null) {
+            return local == NULL_VALUE ? null : type.cast(local);
+        }
+        // an invalidation from now on wins over what this read puts into L1
+        long generation = generation(key);
+        // 1. try to get from cache
+        byte[] raw = getFromRedis(key);
+        if (raw != null && raw.length == 0) {
+            return putLocal(key, generation, null);
+        }
+        R r = null;
+        int delta = 0;
+        long expireAt = Long.MAX_VALUE;
+        if (raw != null && raw.length > EARLY_HEADER && raw[0] == EARLY) {
+            ByteBuffer header = ByteBuffer.wrap(raw, 1, EARLY_HEADER - 1);
+            delta = header.getInt();
+            expireAt = header.getLong();
+            r = cacheCodec.decode(Arrays.copyOfRange(raw, EARLY_HEADER, raw.length), type);
+        } else if (raw != null) {
+            r = cacheCodec.decode(raw, type);
+        }
+        // 2. miss, or unreadable by the current codec
+        if (r == null) {
+            return putLocal(key, generation, singleFlight(key, type, () -> loadEarly(key, id, dbFallback, time, unit)));
+        }
+        // 3. roll the dice, the winner refreshes in the background and everyone keeps the current value
+        double gap = -delta * xfetchBeta * Math.log(ThreadLocalRandom.current().nextDouble());
+        if (System.currentTimeMillis() + gap >= expireAt && rebuildingKeys.add(key)) {
+            earlyRefreshes.increment();
+            boolean submitted = submitRebuild(() -> {
+                try {
+                    loadEarly(key, id, dbFallback, time, unit);
+                    invalidateLocal(key);
+                } catch (Exception e) {
+                    log.error("failed to refresh cache {} early", key, e);
+                } finally {
+                    rebuildingKeys.remove(key);
+                }
+            });
+            if (!submitted) {
+                rebuildingKeys.remove(key);
+            }
+        }
+        return putLocal(key, generation, r);
+    }
+
+    private <R,ID> R loadEarly(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        long begin = System.currentTimeMillis();
+        R r = dbFallback.apply(id);
+        if (r == null) {
+            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        int delta = (int) Math.max(1, Math.min(Integer.MAX_VALUE, now - begin));
+        long ttl = unit.toMillis(time);
+        byte[] raw = cacheCodec.encode(r);
+        byte[] value = ByteBuffer.allocate(EARLY_HEADER + raw.length).put(EARLY).putInt(delta).putLong(now + ttl).put(raw).array();
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.stringCommands()
+                .set(rawKey(key), value, Expiration.milliseconds(ttl), RedisStringCommands.SetOption.upsert()));
+        return r;
+    }
+
+    /*
+    batch version of queryByIdWithoutCachePenetration for list pages: L1 first, then one MGET for the rest,
+    one db call for the misses and one pipeline writing them back (ids not in db as null markers).
+    the result keeps the order of ids and leaves out the ones that do not exist
      */
-    private boolean tryLock(String key) {
-        Boolean result = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.MINUTES);
+    public <R,ID> List<R> queryByIds(String keyPrefix, List<ID> ids, Class<R> type, Function<List<ID>, Map<ID, R>> batchDbFallback, Long time, TimeUnit unit) {
+        Map<ID, R> found = new HashMap<>(ids.size() * 2);
+        // 0. try L1
+        List<ID> remote = new ArrayList<>(ids.size());
+        Map<ID, Long> readGenerations = new HashMap<>(ids.size() * 2);
+        for (ID id : ids) {
+            Object local = getLocal(keyPrefix + id);
+            if (local == null) {
+                remote.add(id);
+                readGenerations.put(id, generation(keyPrefix + id));
+            } else if (local != NULL_VALUE) {
+                found.put(id, type.cast(local));
+            }
+        }
+        // 1. one MGET for the rest
+        List<ID> misses = new ArrayList<>(remote.size());
+        if (!remote.isEmpty()) {
+            remote.forEach(id -> hotKeyDetector.record(keyPrefix + id));
+            byte[][] keys = remote.stream().map(id -> rawKey(keyPrefix + id)).toArray(byte[][]::new);
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(keys));
+            for (int i = 0; i < remote.size(); i++) {
+                ID id = remote.get(i);
+                byte[] raw = values == null ? null : values.get(i);
+                if (raw == null) {
+                    redisMisses.increment();
+                } else {
+                    redisHits.increment();
+                }
+                Object cached = decode(unwrap(raw), type);
+                if (cached == null) {
+                    misses.add(id);
+                } else if (cached != NULL_VALUE) {
+                    found.put(id, putLocal(keyPrefix + id, readGenerations.get(id), type.cast(cached)));
+                } else {
+                    putLocal(keyPrefix + id, readGenerations.get(id), null);
+                }
+            }
+        }
+        // 2. one db call for the misses, written back in one pipeline
+        if (!misses.isEmpty()) {
+            Map<ID, R> loaded = batchDbFallback.apply(misses);
+            long seconds = unit.toSeconds(time);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : misses) {
+                    R r = loaded.get(id);
+                    byte[] key = rawKey(keyPrefix + id);
+                    if (r == null) {
+                        connection.stringCommands().set(key, new byte[0],
+                                Expiration.from(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES), RedisStringCommands.SetOption.upsert());
+                    } else {
+                        // spread the expiry of a page written at the same moment
+                        long ttl = seconds + RandomUtil.randomLong(0, seconds / 5 + 1);
+                        connection.stringCommands().set(key, cacheCodec.encode(r),
+                                Expiration.seconds(ttl), RedisStringCommands.SetOption.upsert());
+                    }
+                }
+                return null;
+            });
+            for (ID id : misses) {
+                R r = putLocal(keyPrefix + id, readGenerations.get(id), loaded.get(id));
+                if (r != null) {
+                    found.put(id, r);
+                }
+            }
+        }
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    /*
+    logical expire: the cached value is always returned at once, a stale one triggers a single
+    background rebuild per key (local set + redis mutex) on the bounded rebuild pool.
+    keys are expected to be warmed up, a key never cached is loaded synchronously, once per node
+     */
+    public <R,ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        // 0. try L1
+        Object local = getLocal(key);
+        if (local != null) {
+            return local == NULL_VALUE ? null : type.cast(local);
+        }
+        // an invalidation from now on wins over what this read puts into L1
+        long generation = generation(key);
+        // 1. try to get from cache
+        byte[] raw = getFromRedis(key);
+        if (raw != null && raw.length == 0) {
+            return putLocal(key, generation, null);
+        }
+        R r = null;
+        long expireAt = 0;
+        if (raw != null && raw.length > LOGICAL_HEADER && raw[0] == LOGICAL) {
+            expireAt = ByteBuffer.wrap(raw, 1, 8).getLong();
+            r = cacheCodec.decode(Arrays.copyOfRange(raw, LOGICAL_HEADER, raw.length), type);
+        }
+        if (r == null) {
+            // not warmed up, written by another mode or unreadable by the current codec:
+            // one load per node (single flight), one node at a time (redis mutex)
+            return putLocal(key, generation, singleFlight(key, type, () -> loadWithMutex(key, id, type, dbFallback, true,
+                    loaded -> setWithLogicalExpire(key, loaded, time, unit))));
+        }
+        // 2. still fresh
+        if (expireAt > System.currentTimeMillis()) {
+            return putLocal(key, generation, r);
+        }
+        // 3. stale, rebuild in the background and return the old value
+        if (rebuildingKeys.add(key)) {
+            String lockKey = RedisConstants.LOCK_KEY + key;
+            String token = UUID.randomUUID().toString(true);
+            if (tryLock(lockKey, token)) {
+                boolean submitted = submitRebuild(() -> {
+                    try {
+                        R fresh = dbFallback.apply(id);
+                        if (fresh == null) {
+                            delete(key);
+                        } else {
+                            setWithLogicalExpire(key, fresh, time, unit);
+                            invalidateLocal(key);
+                        }
+                    } catch (Exception e) {
+                        log.error("failed to rebuild cache {}", key, e);
+                    } finally {
+                        unlock(lockKey, token);
+                        rebuildingKeys.remove(key);
+                    }
+                });
+                if (!submitted) {
+                    // queue full, keep serving the stale value
+                    unlock(lockKey, token);
+                    rebuildingKeys.remove(key);
+                }
+            } else {
+                // another node is rebuilding it
+                rebuildingKeys.remove(key);
+            }
+        }
+        return r;
+    }
+
+    /*
+    preload values loaded in bulk, in one pipeline. logical: in logical expire format,
+    otherwise with the ttl spread like queryByIds
+     */
+    public <R,ID> int warmUp(String keyPrefix, Map<ID, R> values, Long time, TimeUnit unit, boolean logical) {
+        if (values.isEmpty()) {
+            return 0;
+        }
+        long expireAt = System.currentTimeMillis() + unit.toMillis(time);
+        long seconds = unit.toSeconds(time);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            values.forEach((id, r) -> {
+                byte[] key = rawKey(keyPrefix + id);
+                byte[] raw = cacheCodec.encode(r);
+                if (logical) {
+                    connection.stringCommands().set(key, wrapLogical(raw, expireAt));
+                } else {
+                    long ttl = seconds + RandomUtil.randomLong(0, seconds / 5 + 1);
+                    connection.stringCommands().set(key, raw, Expiration.seconds(ttl), RedisStringCommands.SetOption.upsert());
+                }
+            });
+            return null;
+        });
+        invalidateLocal(values.keySet().stream().map(id -> keyPrefix + id).collect(Collectors.toList()));
+        return values.size();
+    }
+
+    /*
+    hit and miss ratios of both tiers
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        if (localCache != null) {
+            CacheStats l1 = localCache.stats();
+            Map<String, Object> local = new LinkedHashMap<>();
+            local.put("hits", l1.hitCount());
+            local.put("misses", l1.missCount());
+            local.put("hitRate", l1.hitRate());
+            local.put("size", localCache.estimatedSize());
+            stats.put("l1", local);
+        }
+        long hits = redisHits.sum();
+        long misses = redisMisses.sum();
+        Map<String, Object> redis = new LinkedHashMap<>();
+        redis.put("hits", hits);
+        redis.put("misses", misses);
+        redis.put("hitRate", hits + misses == 0 ? 1.0 : (double) hits / (hits + misses));
+        redis.put("earlyRefreshes", earlyRefreshes.sum());
+        stats.put("l2", redis);
+        return stats;
+    }
+
+    private Object getLocal(String key) {
+        return localCache == null ? null : localCache.getIfPresent(key);
+    }
+
+    private void invalidateLocal(String key) {
+        if (localCache != null) {
+            dropLocal(Collections.singletonList(key));
+            stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+        }
+    }
+
+    private void invalidateLocal(Collection<String> keys) {
+        if (localCache != null) {
+            dropLocal(keys);
+            stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, String.join("\n", keys));
+        }
+    }
+
+    /*
+    bump the generation first, so a read that started before this can not put its old value back
+     */
+    private void dropLocal(Collection<String> keys) {
+        keys.forEach(key -> generations.incrementAndGet(stripe(key)));
+        localCache.invalidateAll(keys);
+    }
+
+    private long generation(String key) {
+        return generations.get(stripe(key));
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+    }
+
+    /*
+    `generation` was taken before the value was read. an invalidation since then means the value may be
+    older than the broadcast, it is returned but not kept. checked again after the put for an invalidation
+    landing in between, a later one removes the entry itself
+     */
+    private <R> R putLocal(String key, long generation, R value) {
+        if (localCache != null && generation(key) == generation) {
+            localCache.put(key, value == null ? NULL_VALUE : value);
+            if (generation(key) != generation) {
+                localCache.invalidate(key);
+            }
+        }
+        return value;
+    }
+
+    /*
+    counted by the hot key detector, a hot key is read from its short-lived local copy
+     */
+    private byte[] getFromRedis(String key) {
+        byte[] raw = hotKeyDetector.read(key, () -> readBytes(key));
+        if (raw == null) {
+            redisMisses.increment();
+        } else {
+            redisHits.increment();
+        }
+        return raw;
+    }
+
+    private byte[] readBytes(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey(key)));
+    }
+
+    /*
+    the codec bytes of a value written in logical expire or early expiration format, for batch reads
+    that only need the value; a hot key's expiry is still handled by its own single-key read
+     */
+    private static byte[] unwrap(byte[] raw) {
+        if (raw != null && raw.length > LOGICAL_HEADER && raw[0] == LOGICAL) {
+            return Arrays.copyOfRange(raw, LOGICAL_HEADER, raw.length);
+        }
+        if (raw != null && raw.length > EARLY_HEADER && raw[0] == EARLY) {
+            return Arrays.copyOfRange(raw, EARLY_HEADER, raw.length);
+        }
+        return raw;
+    }
+
+    /*
+    null: not cached, or unreadable by the current codec. NULL_VALUE: the null marker
+     */
+    private Object decode(byte[] raw, Class<?> type) {
+        if (raw == null) {
+            return null;
+        }
+        if (raw.length == 0) {
+            return NULL_VALUE;
+        }
+        return cacheCodec.decode(raw, type);
+    }
+
+    private static boolean submitRebuild(Runnable task) {
+        try {
+            CACHE_REBUILD_EXECUTOR.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private static byte[] wrapLogical(byte[] raw, long expireAt) {
+        return ByteBuffer.allocate(LOGICAL_HEADER + raw.length).put(LOGICAL).putLong(expireAt).put(raw).array();
+    }
+
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+    using redis setnx to achieve the goal of mutex lock, the value is the owner token
+     */
+    private boolean tryLock(String key, String token) {
+        Boolean result = stringRedisTemplate.opsForValue().setIfAbsent(key, token, RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(result);
     }
 
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
+    /*
+    only the owner deletes the lock, same script as SimpleRedisLock
+     */
+    private void unlock(String key, String token) {
+        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(key), token);
     }
 }
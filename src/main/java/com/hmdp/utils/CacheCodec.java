@@ -0,0 +1,15 @@
+package com.hmdp.utils;
+
+/*
+how CacheClient turns values into redis bytes and back.
+an empty array is reserved for the null marker, so encode never returns one
+ */
+public interface CacheCodec {
+    byte[] encode(Object value);
+
+    /*
+    null when the bytes can not be read as this type (other format, older schema),
+    the caller treats it as a miss and rebuilds the entry
+     */
+    <R> R decode(byte[] bytes, Class<R> type);
+}
@@ -0,0 +1,126 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/*
+transactional outbox for cache invalidation. record() inserts the key into tb_cache_outbox inside the
+transaction that changes the entity, so the invalidation is committed or rolled back with the change.
+after commit the key is deleted at once (fast path); the poller then reads the outbox in id order,
+deletes the keys from redis and from the L1 of every node in batches, and removes the rows.
+the poller stands in for a binlog reader: a crash between commit and the fast path is covered by it,
+and its second delete a moment later also drops a value a concurrent reader loaded from the old row
+ */
+@Slf4j
+@Component
+public class CacheInvalidationOutbox {
+    @Resource
+    private CacheOutboxMapper cacheOutboxMapper;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    /**
+     * 轮询outbox表的间隔（毫秒）
+     */
+    @Value("${hmdp.cache.outbox-poll-ms:500}")
+    private long pollMs;
+
+    /**
+     * 每批处理的失效事件数
+     */
+    @Value("${hmdp.cache.outbox-batch-size:200}")
+    private int batchSize;
+
+    private final ScheduledExecutorService pollExecutor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("cache-outbox-", true));
+
+    @PostConstruct
+    private void init() {
+        pollExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                poll();
+            } catch (Exception e) {
+                log.error("failed to poll cache outbox", e);
+            }
+        }, pollMs, pollMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        pollExecutor.shutdownNow();
+    }
+
+    /*
+    must be called inside the transaction that changes the cached entity
+     */
+    public void record(String key) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            throw new IllegalStateException("cache outbox record outside of a transaction: " + key);
+        }
+        cacheOutboxMapper.insert(new CacheOutbox().setCacheKey(key));
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                cacheClient.delete(key);
+            }
+        });
+    }
+
+    /*
+    drain the outbox, one node at a time. rows are removed only after the keys are deleted,
+    so a failure just leaves them for the next round
+     */
+    public int poll() {
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_KEY + "cache:outbox");
+        if (!lock.tryLock()) {
+            return 0;
+        }
+        int drained = 0;
+        try {
+            while (true) {
+                List<CacheOutbox> rows = cacheOutboxMapper.selectList(new QueryWrapper<CacheOutbox>()
+                        .orderByAsc("id").last("limit " + batchSize));
+                if (rows.isEmpty()) {
+                    break;
+                }
+                Set<String> keys = rows.stream().map(CacheOutbox::getCacheKey).collect(Collectors.toCollection(LinkedHashSet::new));
+                cacheClient.deleteAll(keys);
+                cacheOutboxMapper.deleteBatchIds(rows.stream().map(CacheOutbox::getId).collect(Collectors.toList()));
+                drained += rows.size();
+                if (rows.size() < batchSize) {
+                    break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (drained > 0) {
+            log.debug("cache outbox drained {} invalidations", drained);
+        }
+        return drained;
+    }
+}
@@ -0,0 +1,169 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.collection.ListUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.hmdp.entity.ShopType;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import io.lettuce.core.event.connection.ConnectionActivatedEvent;
+import io.lettuce.core.event.connection.DisconnectedEvent;
+import io.lettuce.core.resource.ClientResources;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+bulk loads the caches every request would otherwise miss at the same moment: all shop types, the
+top-N shops by sold (one db query + one pipeline per batch) and the shop:geo:<typeId> sets, run in
+parallel on a pool of `concurrency` threads. started when the application is ready, and again
+when the redis connection comes back after a disconnect (failover, restart, flush).
+readiness stays DOWN until the first warm-up has finished; later runs keep the node ready, so a
+reconnect of every node at once does not take the whole cluster out of the load balancer
+ */
+@Slf4j
+@Component
+public class CacheWarmer {
+    private static final int BATCH_SIZE = 200;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private ClientResources clientResources;
+
+    @Value("${hmdp.warmup.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 预热销量最高的商铺数
+     */
+    @Value("${hmdp.warmup.top-shops:1000}")
+    private int topShops;
+
+    /**
+     * 并行加载的线程数
+     */
+    @Value("${hmdp.warmup.concurrency:4}")
+    private int concurrency;
+
+    private volatile boolean ready;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private volatile Map<String, Object> lastRun = new LinkedHashMap<>();
+
+    private ExecutorService loadExecutor;
+
+    private final ExecutorService warmUpExecutor =
+            Executors.newSingleThreadExecutor(new NamedThreadFactory("cache-warm-up-", true));
+
+    private Disposable reconnectSubscription;
+
+    @PostConstruct
+    private void init() {
+        loadExecutor = Executors.newFixedThreadPool(concurrency, new NamedThreadFactory("cache-warm-up-load-", true));
+        AtomicBoolean disconnected = new AtomicBoolean();
+        reconnectSubscription = clientResources.eventBus().get().subscribe(event -> {
+            if (event instanceof DisconnectedEvent) {
+                disconnected.set(true);
+            } else if (event instanceof ConnectionActivatedEvent && disconnected.compareAndSet(true, false)) {
+                log.info("redis reconnected, warming up caches again");
+                trigger();
+            }
+        });
+    }
+
+    @PreDestroy
+    private void destroy() {
+        reconnectSubscription.dispose();
+        warmUpExecutor.shutdownNow();
+        loadExecutor.shutdownNow();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (!enabled) {
+            ready = true;
+            return;
+        }
+        trigger();
+    }
+
+    /*
+    start a warm-up in the background, false when one is already running
+     */
+    public boolean trigger() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        warmUpExecutor.submit(() -> {
+            try {
+                warmUp();
+            } catch (Exception e) {
+                // serve from db rather than stay DOWN, a reconnect triggers the next run
+                log.error("cache warm-up failed", e);
+            } finally {
+                ready = true;
+                running.set(false);
+            }
+        });
+        return true;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("ready", ready);
+        status.put("running", running.get());
+        status.put("lastRun", lastRun);
+        return status;
+    }
+
+    private void warmUp() throws Exception {
+        long begin = System.currentTimeMillis();
+        List<ShopType> types = shopTypeService.warmUp();
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (List<Long> ids : ListUtil.partition(shopService.queryTopShopIds(topShops), BATCH_SIZE)) {
+            tasks.add(() -> shopService.warmUpShops(ids));
+        }
+        // one streaming pass over tb_shop for all the geo sets
+        tasks.add(shopService::loadShopGeo);
+        int shops = 0;
+        List<Future<Integer>> futures = loadExecutor.invokeAll(tasks);
+        for (int i = 0; i < futures.size() - 1; i++) {
+            shops += futures.get(i).get();
+        }
+        int locations = futures.get(futures.size() - 1).get();
+        Map<String, Object> run = new LinkedHashMap<>();
+        run.put("finishedAt", LocalDateTime.now());
+        run.put("millis", System.currentTimeMillis() - begin);
+        run.put("shopTypes", types.size());
+        run.put("shops", shops);
+        run.put("geoLocations", locations);
+        lastRun = run;
+        log.info("cache warm-up done: {}", run);
+    }
+}
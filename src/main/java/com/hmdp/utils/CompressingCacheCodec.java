@@ -0,0 +1,91 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+deflates values of at least `threshold` bytes (shop images / blog content can be long):
+    'Z' | original length (int) | raw deflate
+smaller values, and values that do not shrink, are stored as the delegate wrote them.
+a value cut inside the header, or whose length is negative or above MAX_LENGTH, is a miss
+ */
+@Slf4j
+public class CompressingCacheCodec implements CacheCodec {
+    private static final byte COMPRESSED = 'Z';
+    private static final int HEADER = 5;
+    // redis caps a string at 512mb, no cached entity comes near this
+    private static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+    private final CacheCodec delegate;
+    private final int threshold;
+
+    public CompressingCacheCodec(CacheCodec delegate, int threshold) {
+        this.delegate = delegate;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        byte[] raw = delegate.encode(value);
+        if (raw.length < threshold) {
+            return raw;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + HEADER);
+            out.write(COMPRESSED);
+            out.write(raw.length >>> 24);
+            out.write(raw.length >>> 16);
+            out.write(raw.length >>> 8);
+            out.write(raw.length);
+            byte[] buf = new byte[1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+            return out.size() < raw.length ? out.toByteArray() : raw;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        if (bytes[0] != COMPRESSED) {
+            return delegate.decode(bytes, type);
+        }
+        if (bytes.length < HEADER) {
+            return null;
+        }
+        int length = (bytes[1] & 0xFF) << 24 | (bytes[2] & 0xFF) << 16 | (bytes[3] & 0xFF) << 8 | (bytes[4] & 0xFF);
+        if (length < 0 || length > MAX_LENGTH) {
+            log.warn("compressed cache value of {} claims {} bytes", type.getSimpleName(), length);
+            return null;
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(bytes, HEADER, bytes.length - HEADER);
+            byte[] raw = new byte[length];
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int read = inflater.inflate(raw, n, length - n);
+                if (read == 0 && inflater.needsInput()) {
+                    break;
+                }
+                n += read;
+            }
+            return n == length ? delegate.decode(raw, type) : null;
+        } catch (DataFormatException e) {
+            log.warn("corrupt compressed cache value of {}", type.getSimpleName(), e);
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+}
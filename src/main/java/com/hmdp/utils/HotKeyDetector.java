@@ -0,0 +1,295 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Supplier;
+
+/*
+in-process hot key detection for redis reads. every access is counted in a count-min sketch split
+into time slots, the sum over the slots is the count of the sliding window. keys with a high estimate
+are kept as candidates, and on every slot rotation the candidates are re-estimated into a top-K list
+(min heap) and the hot set (estimate >= threshold). reads of a hot key through read() are served from
+a short-ttl local cache, so one key can not pin a single redis node; a key that cools down drops out
+of the hot set at the next rotation and its local copy expires by ttl. once the candidate map is
+full, a new key only gets in by beating the coldest candidate
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = {0x9747b28c, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f};
+    private static final Object NULL_VALUE = new Object();
+    private static final char VARIANT = '\u0000';
+
+    /**
+     * 关闭后不统计也不提升
+     */
+    @Value("${hmdp.hotkey.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 滑动窗口长度（秒）
+     */
+    @Value("${hmdp.hotkey.window-seconds:10}")
+    private int windowSeconds;
+
+    /**
+     * 窗口切分的时间片数
+     */
+    @Value("${hmdp.hotkey.slots:5}")
+    private int slotCount;
+
+    /**
+     * count-min sketch 每行的计数器数
+     */
+    @Value("${hmdp.hotkey.sketch-width:4096}")
+    private int width;
+
+    /**
+     * 窗口内访问次数达到该值即为热key
+     */
+    @Value("${hmdp.hotkey.threshold:500}")
+    private long threshold;
+
+    @Value("${hmdp.hotkey.top-k:20}")
+    private int topK;
+
+    /**
+     * 热key本地副本的有效期（毫秒）
+     */
+    @Value("${hmdp.hotkey.local-ttl-ms:1000}")
+    private long localTtlMs;
+
+    private AtomicIntegerArray[] slots;
+    private volatile int current;
+
+    /**
+     * 候选key及最近一次估计值，数量有上限
+     */
+    private final Map<String, Long> candidates = new ConcurrentHashMap<>();
+
+    private volatile Set<String> hotKeys = Collections.emptySet();
+
+    private volatile List<Map<String, Object>> top = Collections.emptyList();
+
+    private Cache<String, Object> promoted;
+
+    private final ScheduledExecutorService rotateExecutor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("hot-key-", true));
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        slots = new AtomicIntegerArray[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new AtomicIntegerArray(DEPTH * width);
+        }
+        promoted = Caffeine.newBuilder()
+                .maximumSize(topK * 4L)
+                .expireAfterWrite(localTtlMs, TimeUnit.MILLISECONDS)
+                .build();
+        long slotMs = TimeUnit.SECONDS.toMillis(windowSeconds) / slotCount;
+        rotateExecutor.scheduleAtFixedRate(() -> {
+            try {
+                rotate();
+            } catch (Exception e) {
+                log.error("failed to rotate hot key window", e);
+            }
+        }, slotMs, slotMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        rotateExecutor.shutdownNow();
+    }
+
+    /*
+    count one access of the key
+     */
+    public void record(String key) {
+        if (!enabled) {
+            return;
+        }
+        int[] indexes = indexes(key);
+        AtomicIntegerArray slot = slots[current];
+        for (int d = 0; d < DEPTH; d++) {
+            slot.incrementAndGet(d * width + indexes[d]);
+        }
+        long estimate = estimate(indexes);
+        // keep the candidate map small, only keys that could make it into the top-K
+        if (estimate < candidateThreshold()) {
+            return;
+        }
+        if (candidates.size() < topK * 10 || candidates.containsKey(key)) {
+            candidates.put(key, estimate);
+            return;
+        }
+        // full: a key that became hotter than the coldest candidate takes its place
+        Map.Entry<String, Long> coldest = null;
+        for (Map.Entry<String, Long> entry : candidates.entrySet()) {
+            if (coldest == null || entry.getValue() < coldest.getValue()) {
+                coldest = entry;
+            }
+        }
+        if (coldest != null && coldest.getValue() < estimate && candidates.remove(coldest.getKey(), coldest.getValue())) {
+            candidates.put(key, estimate);
+        }
+    }
+
+    /*
+    count the access, and when the key is hot serve it from the local copy (loaded once per ttl,
+    concurrent loads of the key share one call)
+     */
+    public <T> T read(String key, Supplier<T> loader) {
+        record(key);
+        if (!enabled || !hotKeys.contains(key)) {
+            return loader.get();
+        }
+        return cached(key, loader);
+    }
+
+    /*
+    like read(key, loader) for reads of a key that differ by arguments (a page of a zset, one member):
+    the key is counted, and while it is hot each variant gets its own local copy
+     */
+    public <T> T read(String key, Object variant, Supplier<T> loader) {
+        record(key);
+        if (!enabled || !hotKeys.contains(key)) {
+            return loader.get();
+        }
+        return cached(key + VARIANT + variant, loader);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T cached(String localKey, Supplier<T> loader) {
+        Object value = promoted.get(localKey, k -> {
+            T loaded = loader.get();
+            return loaded == null ? NULL_VALUE : loaded;
+        });
+        return value == NULL_VALUE ? null : (T) value;
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.contains(key);
+    }
+
+    /*
+    drop the local copy after the key is changed or deleted
+     */
+    public void invalidate(String key) {
+        if (promoted != null) {
+            promoted.invalidate(key);
+            String prefix = key + VARIANT;
+            promoted.asMap().keySet().removeIf(k -> k.startsWith(prefix));
+        }
+    }
+
+    public List<Map<String, Object>> topK() {
+        return top;
+    }
+
+    /*
+    advance to the next slot (clearing what it counted one window ago), then re-estimate the candidates
+     */
+    private void rotate() {
+        int next = (current + 1) % slotCount;
+        AtomicIntegerArray slot = slots[next];
+        for (int i = 0; i < slot.length(); i++) {
+            slot.set(i, 0);
+        }
+        current = next;
+
+        PriorityQueue<Map.Entry<String, Long>> heap = new PriorityQueue<>(topK + 1, Map.Entry.comparingByValue());
+        Set<String> hot = ConcurrentHashMap.newKeySet();
+        long cutoff = candidateThreshold();
+        for (String key : candidates.keySet()) {
+            long estimate = estimate(indexes(key));
+            if (estimate < cutoff) {
+                candidates.remove(key);
+                continue;
+            }
+            candidates.put(key, estimate);
+            if (estimate >= threshold) {
+                hot.add(key);
+            }
+            heap.offer(new AbstractMap.SimpleEntry<>(key, estimate));
+            if (heap.size() > topK) {
+                heap.poll();
+            }
+        }
+        List<Map<String, Object>> list = new ArrayList<>(heap.size());
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(heap);
+        entries.sort(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()));
+        for (Map.Entry<String, Long> entry : entries) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("key", entry.getKey());
+            item.put("count", entry.getValue());
+            item.put("hot", entry.getValue() >= threshold);
+            list.add(item);
+        }
+        if (!hot.equals(hotKeys)) {
+            log.info("hot keys: {}", hot);
+        }
+        hotKeys = hot;
+        top = list;
+    }
+
+    private long candidateThreshold() {
+        return Math.max(1, threshold / 10);
+    }
+
+    private long estimate(int[] indexes) {
+        long min = Long.MAX_VALUE;
+        for (int d = 0; d < DEPTH; d++) {
+            long sum = 0;
+            for (AtomicIntegerArray slot : slots) {
+                sum += slot.get(d * width + indexes[d]);
+            }
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    private int[] indexes(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int[] indexes = new int[DEPTH];
+        for (int d = 0; d < DEPTH; d++) {
+            int h = SEEDS[d];
+            for (byte b : bytes) {
+                h = (h ^ b) * 0x01000193;
+            }
+            // fmix32
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            indexes[d] = (h & Integer.MAX_VALUE) % width;
+        }
+        return indexes;
+    }
+}
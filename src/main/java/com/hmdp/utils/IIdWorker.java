@@ -0,0 +1,21 @@
+package com.hmdp.utils;
+
+/**
+ * 全局唯一id，高32位是相对 BEGIN_TIMESTAMP 的秒数，低32位是序列号
+ */
+public interface IIdWorker {
+    /**
+     * 开始时间戳
+     */
+    long BEGIN_TIMESTAMP = 1640995200L;
+    /**
+     * 序列号的位数
+     */
+    int COUNT_BITS = 32;
+    /**
+     * 序列号的最高位，redis计数器产生的序列号不能用到它，snowflake的id总是带着它，两种id不会重复
+     */
+    long SNOWFLAKE_FLAG = 1L << (COUNT_BITS - 1);
+
+    long nextId(String keyPrefix);
+}
@@ -0,0 +1,375 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+
+/*
+in-process bloom filters of the ids in tb_shop, tb_blog and tb_user, so lookups of ids that can not exist
+are rejected before redis or db, instead of leaving a null marker in redis for every random id.
+loaded at startup with keyset paging, an id inserted on any node is pushed to all nodes through redis
+pub/sub, and a periodic sweep only reads the ids above the highest one loaded. pub/sub may drop a message,
+so ids above the highest one swept are let through only up to the max id of the table, read with
+SELECT MAX(id) at most once per `max-id-check-ms`; larger ids (random probes) are still rejected. a filter that has grown
+past its capacity is rebuilt from scratch with a bigger size and swapped in.
+ids can not be removed, a deleted id just keeps going through the normal null-marker path
+ */
+@Slf4j
+@Component
+public class IdBloomFilter {
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+    public static final String USER = "user";
+
+    private static final int PAGE_SIZE = 5000;
+    private static final long MIN_CAPACITY = 1024;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private BlogMapper blogMapper;
+
+    @Resource
+    private UserMapper userMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 关闭后所有id都视为可能存在
+     */
+    @Value("${hmdp.bloom.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 期望误判率
+     */
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    /**
+     * 增量同步间隔（秒）
+     */
+    @Value("${hmdp.bloom.refresh-seconds:300}")
+    private long refreshSeconds;
+
+    /**
+     * 超过已扫描最大id的请求，最多每隔这么久查一次表中的最大id
+     */
+    @Value("${hmdp.bloom.max-id-check-ms:1000}")
+    private long maxIdCheckMs;
+
+    private final Map<String, Holder> holders = new ConcurrentHashMap<>();
+
+    /**
+     * 本节点的标识，收到自己发出的 bloom:add 消息时忽略
+     */
+    private final String nodeId = UUID.fastUUID().toString(true);
+
+    private final ScheduledExecutorService refreshExecutor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("id-bloom-", true));
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        holders.put(SHOP, holder(shopMapper));
+        holders.put(BLOG, holder(blogMapper));
+        holders.put(USER, holder(userMapper));
+        holders.forEach((name, holder) -> {
+            try {
+                rebuild(name, holder);
+            } catch (Exception e) {
+                // stays null, every id passes until the next refresh
+                log.error("failed to load bloom filter {}", name, e);
+            }
+        });
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            // <node>:<name>:<id>, this node added its own ids already
+            String[] parts = new String(message.getBody()).split(":", 3);
+            if (!nodeId.equals(parts[0])) {
+                addLocal(parts[1], Long.valueOf(parts[2]));
+            }
+        }, new ChannelTopic(RedisConstants.BLOOM_ADD_CHANNEL));
+        refreshExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                refresh();
+            } catch (Exception e) {
+                log.error("failed to refresh bloom filters", e);
+            }
+        }, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        refreshExecutor.shutdownNow();
+    }
+
+    /*
+    false means the id is surely not in the table, true means it may be
+     */
+    public boolean mightContain(String name, Long id) {
+        if (id == null) {
+            return false;
+        }
+        Holder holder = holders.get(name);
+        if (holder == null || holder.filter == null) {
+            return true;
+        }
+        if (holder.filter.mightContain(id)) {
+            return true;
+        }
+        // inserted after the last sweep, the add message may have been lost
+        return id > holder.maxId && id <= tableMaxId(holder, id);
+    }
+
+    /*
+    called after a row is inserted, this node adds it at once and the others through pub/sub
+     */
+    public void add(String name, Long id) {
+        if (!enabled || id == null) {
+            return;
+        }
+        addLocal(name, id);
+        stringRedisTemplate.convertAndSend(RedisConstants.BLOOM_ADD_CHANNEL, nodeId + ":" + name + ":" + id);
+    }
+
+    /*
+    read the ids inserted since the last load, rebuild the filters that are over capacity
+     */
+    public void refresh() {
+        holders.forEach((name, holder) -> {
+            Filter filter = holder.filter;
+            if (filter == null || filter.count() > filter.capacity) {
+                rebuild(name, holder);
+            } else {
+                holder.maxId = load(holder, holder.maxId, filter);
+                raiseTableMaxId(holder, holder.maxId);
+            }
+        });
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        holders.forEach((name, holder) -> {
+            Filter filter = holder.filter;
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("loaded", filter != null);
+            if (filter != null) {
+                item.put("count", filter.count());
+                item.put("capacity", filter.capacity);
+                item.put("bits", filter.bits);
+                item.put("hashes", filter.hashes);
+            }
+            item.put("maxId", holder.maxId);
+            stats.put(name, item);
+        });
+        return stats;
+    }
+
+    /*
+    the highest id in the table as far as this node knows, read again when `id` is above it
+    and the last read is older than maxIdCheckMs. one thread reads, the others use the last value
+     */
+    private long tableMaxId(Holder holder, long id) {
+        long known = holder.tableMaxId;
+        long last = holder.lastMaxIdCheck.get();
+        long now = System.currentTimeMillis();
+        if (id <= known || now - last < maxIdCheckMs || !holder.lastMaxIdCheck.compareAndSet(last, now)) {
+            return known;
+        }
+        List<Object> max = holder.maxIdLoader.get();
+        if (!max.isEmpty() && max.get(0) != null) {
+            raiseTableMaxId(holder, ((Number) max.get(0)).longValue());
+        }
+        return holder.tableMaxId;
+    }
+
+    private static void raiseTableMaxId(Holder holder, long id) {
+        synchronized (holder) {
+            if (id > holder.tableMaxId) {
+                holder.tableMaxId = id;
+            }
+        }
+    }
+
+    private void addLocal(String name, Long id) {
+        Holder holder = holders.get(name);
+        if (holder == null) {
+            return;
+        }
+        raiseTableMaxId(holder, id);
+        Filter filter = holder.filter;
+        if (filter != null) {
+            filter.add(id);
+        }
+        // a rebuild is running, the new filter may have read the table before this insert
+        Filter building = holder.building;
+        if (building != null) {
+            building.add(id);
+        }
+    }
+
+    private void rebuild(String name, Holder holder) {
+        long count = holder.counter.get();
+        Filter fresh = new Filter(Math.max(count * 2, MIN_CAPACITY), fpp);
+        holder.building = fresh;
+        try {
+            long maxId = load(holder, 0L, fresh);
+            holder.filter = fresh;
+            holder.maxId = maxId;
+            raiseTableMaxId(holder, maxId);
+        } finally {
+            holder.building = null;
+        }
+        log.debug("bloom filter {} built, {} ids, {} bits, {} hashes", name, fresh.count(), fresh.bits, fresh.hashes);
+    }
+
+    /*
+    keyset paging over the primary key, returns the highest id seen
+     */
+    private long load(Holder holder, long afterId, Filter filter) {
+        long maxId = afterId;
+        while (true) {
+            List<Object> ids = holder.pageLoader.apply(maxId);
+            for (Object id : ids) {
+                maxId = ((Number) id).longValue();
+                filter.add(maxId);
+            }
+            if (ids.size() < PAGE_SIZE) {
+                return maxId;
+            }
+        }
+    }
+
+    private <T> Holder holder(BaseMapper<T> mapper) {
+        return new Holder(
+                afterId -> mapper.selectObjs(new QueryWrapper<T>()
+                        .select("id").gt("id", afterId).orderByAsc("id").last("limit " + PAGE_SIZE)),
+                () -> mapper.selectCount(null).longValue(),
+                () -> mapper.selectObjs(new QueryWrapper<T>().select("max(id)")));
+    }
+
+    private static class Holder {
+        private final LongFunction<List<Object>> pageLoader;
+        private final Supplier<Long> counter;
+        private final Supplier<List<Object>> maxIdLoader;
+        private final AtomicLong lastMaxIdCheck = new AtomicLong();
+        private volatile Filter filter;
+        private volatile Filter building;
+        /**
+         * 已扫描进过滤器的最大id
+         */
+        private volatile long maxId;
+        /**
+         * 表中已知的最大id，来自 max(id)、扫描和新增通知
+         */
+        private volatile long tableMaxId;
+
+        private Holder(LongFunction<List<Object>> pageLoader, Supplier<Long> counter, Supplier<List<Object>> maxIdLoader) {
+            this.pageLoader = pageLoader;
+            this.counter = counter;
+            this.maxIdLoader = maxIdLoader;
+        }
+    }
+
+    /*
+    bit array sized by m = -n * ln(p) / ln(2)^2 and k = m / n * ln(2), the k positions come from
+    double hashing of a 64 bit mix of the id. lock free, bits are set with compare and set
+     */
+    private static class Filter {
+        private final long capacity;
+        private final int bits;
+        private final int hashes;
+        private final AtomicLongArray words;
+        private final AtomicLong count = new AtomicLong();
+
+        private Filter(long capacity, double fpp) {
+            this.capacity = capacity;
+            long m = (long) Math.ceil(-capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            this.bits = (int) Math.min(Math.max(m, 64), Integer.MAX_VALUE - 63);
+            this.hashes = Math.max(1, (int) Math.round((double) bits / capacity * Math.log(2)));
+            this.words = new AtomicLongArray((bits + 63) >>> 6);
+        }
+
+        private void add(long id) {
+            long hash = mix(id);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashes; i++) {
+                int combined = h1 + i * h2;
+                int index = (combined & Integer.MAX_VALUE) % bits;
+                long mask = 1L << index;
+                int word = index >>> 6;
+                long old;
+                do {
+                    old = words.get(word);
+                    if ((old & mask) != 0) {
+                        break;
+                    }
+                } while (!words.compareAndSet(word, old, old | mask));
+            }
+            count.incrementAndGet();
+        }
+
+        private boolean mightContain(long id) {
+            long hash = mix(id);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashes; i++) {
+                int combined = h1 + i * h2;
+                int index = (combined & Integer.MAX_VALUE) % bits;
+                if ((words.get(index >>> 6) & (1L << index)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private long count() {
+            return count.get();
+        }
+
+        /*
+        murmur3 fmix64, spreads sequential ids over the whole range
+         */
+        private static long mix(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+
+/*
+the original format, hutool json as utf-8
+ */
+@Slf4j
+public class JsonCacheCodec implements CacheCodec {
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        if (bytes[0] != '{') {
+            return null;
+        }
+        try {
+            return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+        } catch (Exception e) {
+            log.warn("unreadable json cache value of {}", type.getSimpleName(), e);
+            return null;
+        }
+    }
+}
@@ -11,13 +11,35 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final Long CACHE_SHOP_MAX_TTL = 100L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_SHOP_TYPE_KEY = "cache:shop-type:list";
+    public static final Long CACHE_SHOP_TYPE_TTL = 1440L;
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
+    public static final String SHOP_GEO_INDEX_CHANNEL = "shop:geo:index";
+    public static final String SHOP_SEARCH_INDEX_CHANNEL = "shop:search:index";
+    public static final String SHOP_SUGGEST_INDEX_CHANNEL = "shop:suggest:index";
 
     public static final String LOCK_KEY = "lock:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_PENDING_KEY = "seckill:pending:";
+    public static final String SECKILL_REPLENISHED_CHANNEL = "seckill:replenished";
+    public static final String SECKILL_CATALOG_CHANNEL = "seckill:catalog";
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:status:";
+    public static final Long SECKILL_ORDER_STATUS_TTL = 30L;
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DLQ = "stream.orders.dlq";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_GEO_PAGE_KEY = "cache:geo:page:";
     public static final String USER_SIGN_KEY = "sign:";
 }
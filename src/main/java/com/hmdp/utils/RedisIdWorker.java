@@ -1,22 +1,16 @@
 package com.hmdp.utils;
 
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.stereotype.Component;
 
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 
-@Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IIdWorker {
     /**
-     * 开始时间戳
+     * 序列号key中的日期格式，线程安全，不用每次都创建
      */
-    private static final long BEGIN_TIMESTAMP = 1640995200L;
-    /**
-     * 序列号的位数
-     */
-    private static final int COUNT_BITS = 32;
+    static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
 
     private StringRedisTemplate stringRedisTemplate;
 
@@ -24,6 +18,7 @@ public class RedisIdWorker {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @Override
     public long nextId(String keyPrefix) {
         // 1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
@@ -32,11 +27,21 @@ public class RedisIdWorker {
 
         // 2.生成序列号
         // 2.1.获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
         // 2.2.自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count = checkCount(stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date), keyPrefix);
 
         // 3.拼接并返回
         return timestamp << COUNT_BITS | count;
     }
-}
\ No newline at end of file
+
+    /*
+    the top bit of the count belongs to snowflake ids
+     */
+    static long checkCount(Long count, String keyPrefix) {
+        if (count == null || count >= SNOWFLAKE_FLAG) {
+            throw new IllegalStateException("id counter of " + keyPrefix + " used up for today: " + count);
+        }
+        return count;
+    }
+}
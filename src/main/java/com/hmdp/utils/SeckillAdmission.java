@@ -0,0 +1,124 @@
+package com.hmdp.utils;
+
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+per-voucher admission in front of the seckill script: a token bucket bounds the request rate and a
+semaphore bounds how many requests of one voucher wait on redis at the same time. requests over
+either limit are rejected at once instead of queuing on the lettuce pool
+ */
+@Component
+public class SeckillAdmission {
+    @Resource
+    private SeckillVoucherCatalog seckillVoucherCatalog;
+
+    /**
+     * 单个秒杀券在本节点同时执行的最大请求数
+     */
+    @Value("${hmdp.seckill.admission-concurrency:20}")
+    private int maxConcurrency;
+
+    /**
+     * 单个秒杀券在本节点每秒放行的请求数，也是令牌桶容量
+     */
+    @Value("${hmdp.seckill.admission-rate:500}")
+    private int ratePerSecond;
+
+    private final Map<Long, Limiter> limiters = new ConcurrentHashMap<>();
+
+    /**
+     * @return 放行时返回permit，请求结束后必须release；被拒绝时返回null
+     */
+    public Permit tryAcquire(Long voucherId) {
+        // unknown vouchers are rejected by the service right away, no limiter for them
+        if (seckillVoucherCatalog.get(voucherId) == null) {
+            return NO_LIMIT;
+        }
+        Limiter limiter = limiters.computeIfAbsent(voucherId, id -> new Limiter(maxConcurrency, ratePerSecond));
+        return limiter.tryAcquire() ? limiter::release : null;
+    }
+
+    public Map<Long, Metrics> metrics() {
+        Map<Long, Metrics> metrics = new HashMap<>(limiters.size());
+        limiters.forEach((voucherId, limiter) -> {
+            Metrics m = new Metrics();
+            m.setAdmitted(limiter.admitted.sum());
+            m.setRejected(limiter.rejected.sum());
+            m.setInFlight(maxConcurrency - limiter.permits.availablePermits());
+            metrics.put(voucherId, m);
+        });
+        return metrics;
+    }
+
+    public interface Permit {
+        void release();
+    }
+
+    private static final Permit NO_LIMIT = () -> { };
+
+    @Data
+    public static class Metrics {
+        private long admitted;
+        private long rejected;
+        /**
+         * 正在执行（等待redis）的请求数
+         */
+        private long inFlight;
+    }
+
+    private static class Limiter {
+        private final Semaphore permits;
+        private final int rate;
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private double tokens;
+        private long lastRefillNanos = System.nanoTime();
+
+        Limiter(int concurrency, int rate) {
+            this.permits = new Semaphore(concurrency);
+            this.rate = rate;
+            this.tokens = rate;
+        }
+
+        /*
+        the semaphore first, a request turned away by it must not spend a token of the rate
+         */
+        boolean tryAcquire() {
+            if (!permits.tryAcquire()) {
+                rejected.increment();
+                return false;
+            }
+            if (!takeToken()) {
+                permits.release();
+                rejected.increment();
+                return false;
+            }
+            admitted.increment();
+            return true;
+        }
+
+        void release() {
+            permits.release();
+        }
+
+        private synchronized boolean takeToken() {
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - lastRefillNanos) * rate / 1_000_000_000.0);
+            lastRefillNanos = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/*
+status of async seckill orders, so clients can poll without touching mysql.
+the high 32 bits of an order id are its second, orders of the same minute share one small hash
+seckill:status:<minute> (field orderId, and orderId:user for the owner), which expires as a whole
+ */
+@Component
+public class SeckillOrderStatus {
+    public static final String QUEUED = "QUEUED";
+    public static final String CREATED = "CREATED";
+    public static final String FAILED = "FAILED";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    public static String key(long orderId) {
+        return RedisConstants.SECKILL_ORDER_STATUS_KEY + (orderId >>> IIdWorker.COUNT_BITS) / 60;
+    }
+
+    public static long ttlSeconds() {
+        return TimeUnit.MINUTES.toSeconds(RedisConstants.SECKILL_ORDER_STATUS_TTL);
+    }
+
+    /*
+    the field next to the status holding the user of the order
+     */
+    public static String ownerField(long orderId) {
+        return orderId + ":user";
+    }
+
+    /*
+    null unless the order exists and belongs to userId, order ids are easy to guess
+     */
+    public String get(Long orderId, Long userId) {
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(key(orderId),
+                Arrays.asList(orderId.toString(), ownerField(orderId)));
+        Object status = values.get(0);
+        Object owner = values.get(1);
+        if (status == null || owner == null || !owner.toString().equals(userId.toString())) {
+            return null;
+        }
+        return status.toString();
+    }
+
+    /*
+    written before the order enters the stream, so a consumer's CREATED or FAILED always lands after it
+     */
+    public void queued(Long orderId, Long userId) {
+        String key = key(orderId);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.hSet(key, orderId.toString(), QUEUED);
+            conn.hSet(key, ownerField(orderId), userId.toString());
+            conn.expire(key, ttlSeconds());
+            return null;
+        });
+    }
+
+    /*
+    QUEUED for an order queued again after a crash, only if nothing was written for it yet:
+    a first copy may have been created already
+     */
+    public void queuedIfAbsent(Long orderId, Long userId) {
+        String key = key(orderId);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.hSetNX(key, orderId.toString(), QUEUED);
+            conn.hSetNX(key, ownerField(orderId), userId.toString());
+            conn.expire(key, ttlSeconds());
+            return null;
+        });
+    }
+
+    /*
+    one pipeline for a whole batch of orders
+     */
+    public void update(Collection<Long> orderIds, String status) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            Set<String> keys = new HashSet<>();
+            for (Long orderId : orderIds) {
+                String key = key(orderId);
+                conn.hSet(key, orderId.toString(), status);
+                keys.add(key);
+            }
+            for (String key : keys) {
+                conn.expire(key, ttlSeconds());
+            }
+            return null;
+        });
+    }
+}
@@ -0,0 +1,193 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+stock of a hot seckill voucher split across K sub-keys seckill:stock:{id:i}, each with its own
+order set seckill:order:{id:i} and pending hash seckill:pending:{id:i} in the same slot, and every
+script touches one slot only, so the shards can spread over a redis cluster.
+a user always goes to shard userId % K, so the one-order-per-user check stays inside one shard.
+when that shard runs dry it borrows stock from its siblings: a conditional decrement of the sibling,
+then an increment of home, given back to the sibling if the increment fails. a voucher is sold out
+only when every shard reads 0.
+the stream lives in another slot, so an acquired order is kept in the pending hash until the caller
+has queued it (confirm); one left there by a crash is queued again by whoever calls stalePending
+ */
+@Slf4j
+@Component
+public class SeckillStockShards {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 库存还在分片之间移动，没有抢到也不能认为已售罄
+     */
+    public static final int BUSY = 3;
+
+    private static final int MAX_ROUNDS = 3;
+
+    private static final DefaultRedisScript<Long> SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> BORROW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        SHARD_SCRIPT = new DefaultRedisScript<>();
+        SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SHARD_SCRIPT.setResultType(Long.class);
+        BORROW_SCRIPT = new DefaultRedisScript<>();
+        BORROW_SCRIPT.setLocation(new ClassPathResource("seckill_borrow.lua"));
+        BORROW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("seckill_release.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    public static String stockKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String pendingKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_PENDING_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /*
+    split the initial stock evenly, the first `stock % shards` shards get one more
+     */
+    public void init(Long voucherId, int stock, int shards) {
+        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_SHARDS_KEY + voucherId, String.valueOf(shards));
+        for (int i = 0; i < shards; i++) {
+            int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            stringRedisTemplate.opsForValue().set(stockKey(voucherId, i), String.valueOf(shardStock));
+        }
+    }
+
+    public void add(Long voucherId, int count, int shards) {
+        for (int i = 0; i < shards; i++) {
+            int shardCount = count / shards + (i < count % shards ? 1 : 0);
+            if (shardCount > 0) {
+                stringRedisTemplate.opsForValue().increment(stockKey(voucherId, i), shardCount);
+            }
+        }
+    }
+
+    /**
+     * 0 success, 1 no stock, 2 one user multiple order, same as seckill.lua;
+     * 3 stock is still moving between shards after MAX_ROUNDS, the voucher is not sold out.
+     * 成功后订单记在pending中，入队后必须confirm，入队失败必须release
+     */
+    public int tryAcquire(Long voucherId, Long userId, long orderId, int shards) {
+        int home = home(userId, shards);
+        String stockKey = stockKey(voucherId, home);
+        int res = acquire(voucherId, home, userId, orderId);
+        for (int round = 0; res == 1; round++) {
+            // concurrent borrowers move stock around, a sibling seen empty may have stock again
+            if (total(voucherId, shards) <= 0) {
+                return 1;
+            }
+            if (round == MAX_ROUNDS) {
+                return BUSY;
+            }
+            // home shard is empty, borrow from the siblings one by one
+            for (int i = 1; res == 1 && i < shards; i++) {
+                String siblingKey = stockKey(voucherId, (home + i) % shards);
+                Long taken = stringRedisTemplate.execute(BORROW_SCRIPT, Collections.singletonList(siblingKey));
+                if (taken == null || taken == 0) {
+                    continue;
+                }
+                moveTo(stockKey, siblingKey, taken);
+                res = acquire(voucherId, home, userId, orderId);
+            }
+        }
+        return res;
+    }
+
+    /*
+    the order is in the stream now
+     */
+    public void confirm(Long voucherId, Long userId, long orderId, int shards) {
+        stringRedisTemplate.opsForHash().delete(pendingKey(voucherId, home(userId, shards)), String.valueOf(orderId));
+    }
+
+    /*
+    undo tryAcquire when the order could not be queued
+     */
+    public void release(Long voucherId, Long userId, long orderId, int shards) {
+        int home = home(userId, shards);
+        stringRedisTemplate.execute(RELEASE_SCRIPT,
+                Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home), pendingKey(voucherId, home)),
+                userId.toString(), String.valueOf(orderId));
+    }
+
+    /*
+    orderId -> userId of the orders acquired more than minAgeMs ago and never confirmed or released
+     */
+    public Map<Long, Long> stalePending(Long voucherId, int shards, long minAgeMs) {
+        long before = System.currentTimeMillis() - minAgeMs;
+        Map<Long, Long> stale = new HashMap<>();
+        for (int i = 0; i < shards; i++) {
+            Map<Object, Object> pending = stringRedisTemplate.opsForHash().entries(pendingKey(voucherId, i));
+            pending.forEach((orderId, value) -> {
+                // userId:acquired epoch millis
+                String[] parts = value.toString().split(":");
+                if (parts.length == 2 && Long.parseLong(parts[1]) < before) {
+                    stale.put(Long.valueOf(orderId.toString()), Long.valueOf(parts[0]));
+                }
+            });
+        }
+        return stale;
+    }
+
+    /*
+    second step of a borrow, in the slot of home. if it fails the stock goes back to the sibling
+     */
+    private void moveTo(String homeKey, String siblingKey, long taken) {
+        try {
+            stringRedisTemplate.opsForValue().increment(homeKey, taken);
+        } catch (RuntimeException e) {
+            try {
+                stringRedisTemplate.opsForValue().increment(siblingKey, taken);
+            } catch (RuntimeException again) {
+                log.error("lost {} stock borrowed from {} for {}", taken, siblingKey, homeKey, again);
+            }
+            throw e;
+        }
+    }
+
+    /*
+    stock left across all shards, one GET per shard since they sit in different slots
+     */
+    private long total(Long voucherId, int shards) {
+        long total = 0;
+        for (int i = 0; i < shards; i++) {
+            String value = stringRedisTemplate.opsForValue().get(stockKey(voucherId, i));
+            if (value != null) {
+                total += Math.max(0, Long.parseLong(value));
+            }
+        }
+        return total;
+    }
+
+    private int acquire(Long voucherId, int shard, Long userId, long orderId) {
+        Long result = stringRedisTemplate.execute(SHARD_SCRIPT,
+                Arrays.asList(stockKey(voucherId, shard), orderKey(voucherId, shard), pendingKey(voucherId, shard)),
+                userId.toString(), String.valueOf(orderId), String.valueOf(System.currentTimeMillis()));
+        return result == null ? 1 : result.intValue();
+    }
+
+    private static int home(Long userId, int shards) {
+        return (int) Math.floorMod(userId, (long) shards);
+    }
+}
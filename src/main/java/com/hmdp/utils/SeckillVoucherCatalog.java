@@ -0,0 +1,155 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherMapper;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/*
+in-memory catalog of seckill vouchers that have not ended yet, so the time window is checked
+without redis or db. loaded at startup, a voucher added on any node is pushed to all nodes
+through redis pub/sub, and the whole catalog is reloaded periodically as a safety net
+ */
+@Slf4j
+@Component
+public class SeckillVoucherCatalog {
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private VoucherMapper voucherMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.seckill.catalog-refresh-seconds:60}")
+    private long refreshSeconds;
+
+    private volatile Map<Long, Entry> catalog = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService refreshExecutor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("seckill-catalog-", true));
+
+    @Data
+    public static class Entry {
+        private Long voucherId;
+        private Long shopId;
+        private LocalDateTime beginTime;
+        private LocalDateTime endTime;
+        /**
+         * 每人限购数量，seckill.lua 按 (user, voucher) 去重，目前固定为1
+         */
+        private Integer limitPerUser = 1;
+        /**
+         * 库存分片数，1表示普通的单key库存
+         */
+        private Integer stockShards = 1;
+    }
+
+    @PostConstruct
+    private void init() {
+        refresh();
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            Long voucherId = Long.valueOf(new String(message.getBody()));
+            load(voucherId);
+        }, new ChannelTopic(RedisConstants.SECKILL_CATALOG_CHANNEL));
+        refreshExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                refresh();
+            } catch (Exception e) {
+                log.error("failed to refresh seckill voucher catalog", e);
+            }
+        }, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        refreshExecutor.shutdownNow();
+    }
+
+    public Entry get(Long voucherId) {
+        return catalog.get(voucherId);
+    }
+
+    public Collection<Entry> entries() {
+        return catalog.values();
+    }
+
+    /*
+    reload all vouchers not ended yet, ended ones drop out of the catalog.
+    synchronized with load, a voucher loaded during the read would be lost with the old map
+     */
+    public synchronized void refresh() {
+        List<SeckillVoucher> seckillVouchers = seckillVoucherMapper.selectList(
+                new QueryWrapper<SeckillVoucher>().gt("end_time", LocalDateTime.now()));
+        Map<Long, Entry> fresh = new ConcurrentHashMap<>(seckillVouchers.size() * 2);
+        if (!seckillVouchers.isEmpty()) {
+            List<Long> ids = seckillVouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toList());
+            Map<Long, Voucher> vouchers = voucherMapper.selectBatchIds(ids).stream()
+                    .collect(Collectors.toMap(Voucher::getId, Function.identity()));
+            List<String> shards = stringRedisTemplate.opsForValue().multiGet(ids.stream()
+                    .map(id -> RedisConstants.SECKILL_SHARDS_KEY + id).collect(Collectors.toList()));
+            for (int i = 0; i < seckillVouchers.size(); i++) {
+                SeckillVoucher seckillVoucher = seckillVouchers.get(i);
+                fresh.put(seckillVoucher.getVoucherId(), toEntry(seckillVoucher,
+                        vouchers.get(seckillVoucher.getVoucherId()), shards == null ? null : shards.get(i)));
+            }
+        }
+        catalog = fresh;
+        log.debug("seckill voucher catalog loaded, {} vouchers", fresh.size());
+    }
+
+    /*
+    called after a seckill voucher is saved, every node loads it from db
+     */
+    public void publishAdded(Long voucherId) {
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_CATALOG_CHANNEL, voucherId.toString());
+    }
+
+    private synchronized void load(Long voucherId) {
+        SeckillVoucher seckillVoucher = seckillVoucherMapper.selectById(voucherId);
+        if (seckillVoucher == null) {
+            // not committed yet or removed, the periodic refresh picks it up
+            catalog.remove(voucherId);
+            return;
+        }
+        String shards = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_SHARDS_KEY + voucherId);
+        catalog.put(voucherId, toEntry(seckillVoucher, voucherMapper.selectById(voucherId), shards));
+    }
+
+    private Entry toEntry(SeckillVoucher seckillVoucher, Voucher voucher, String shards) {
+        Entry entry = new Entry();
+        entry.setVoucherId(seckillVoucher.getVoucherId());
+        entry.setShopId(voucher == null ? null : voucher.getShopId());
+        entry.setBeginTime(seckillVoucher.getBeginTime());
+        entry.setEndTime(seckillVoucher.getEndTime());
+        if (shards != null) {
+            entry.setStockShards(Integer.valueOf(shards));
+        }
+        return entry;
+    }
+}
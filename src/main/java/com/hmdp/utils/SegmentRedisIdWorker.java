@@ -0,0 +1,114 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+same id layout and same icr:<prefix>:<date> counter as RedisIdWorker, but the counter is leased
+from redis in segments of `step` with INCRBY, so only one call in `step` goes to redis.
+the next segment is loaded in the background once the current one is 80% used (double buffer),
+a used up segment waits for that load rather than leasing another one
+ */
+@Slf4j
+public class SegmentRedisIdWorker implements IIdWorker {
+    private static final double REFILL_RATIO = 0.2;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final long step;
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    private final ExecutorService refillExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("id-segment-", true));
+
+    public SegmentRedisIdWorker(StringRedisTemplate stringRedisTemplate, long step) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.step = step;
+    }
+
+    @Override
+    public long nextId(String keyPrefix) {
+        LocalDateTime now = LocalDateTime.now();
+        long timestamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        long count = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(now.format(RedisIdWorker.DATE_FORMATTER));
+        return timestamp << COUNT_BITS | count;
+    }
+
+    public void shutdown() {
+        refillExecutor.shutdownNow();
+    }
+
+    private Segment load(String keyPrefix, String date) {
+        Long max = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, step);
+        if (max == null) {
+            throw new RuntimeException("failed to lease id segment of " + keyPrefix);
+        }
+        RedisIdWorker.checkCount(max, keyPrefix);
+        return new Segment(date, max - step + 1, max);
+    }
+
+    private static class Segment {
+        private final String date;
+        private final long max;
+        private long value;
+
+        Segment(String date, long min, long max) {
+            this.date = date;
+            this.value = min;
+            this.max = max;
+        }
+    }
+
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private Segment current;
+        private Future<Segment> next;
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        synchronized long next(String date) {
+            // counter is per day, a new day or a used up segment switches to the buffered one
+            if (current == null || !date.equals(current.date) || current.value > current.max) {
+                current = takeNext(date);
+            }
+            long count = current.value++;
+            if (next == null && current.max - count < step * REFILL_RATIO) {
+                next = refillExecutor.submit(() -> load(keyPrefix, date));
+            }
+            return count;
+        }
+
+        /*
+        the buffered segment, waiting for it when its load is still running: leasing another one
+        here would skip counts and hand out the buffered one later, so ids would go down
+         */
+        private Segment takeNext(String date) {
+            Future<Segment> buffered = next;
+            next = null;
+            if (buffered != null) {
+                try {
+                    Segment segment = buffered.get();
+                    if (date.equals(segment.date)) {
+                        return segment;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    // load synchronously
+                    log.error("failed to refill id segment of {}", keyPrefix, e.getCause());
+                }
+            }
+            return load(keyPrefix, date);
+        }
+    }
+}
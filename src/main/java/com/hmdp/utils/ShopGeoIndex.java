@@ -0,0 +1,345 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/*
+optional in-process spatial index of all shops (id, x, y, type, score, avg price), so nearby queries
+need no GEOSEARCH. shops are bucketed into a grid of `index-cell-degrees` squares; a query scans the
+rings of cells around the point, nearest ring first, and stops once the k-th best hit is closer than
+anything the next ring could hold. built at startup with keyset paging, a shop saved or updated on any
+node is reloaded from db on all nodes through redis pub/sub after the transaction commits
+ */
+@Slf4j
+@Component
+public class ShopGeoIndex {
+    private static final int PAGE_SIZE = 5000;
+    private static final double EARTH_RADIUS = 6372797.560856;
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * EARTH_RADIUS;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 开启后附近商铺查询走本地网格索引，不再访问redis GEO
+     */
+    @Value("${hmdp.geo.index-enabled:false}")
+    private boolean enabled;
+
+    /**
+     * 网格边长（度），0.01约1公里
+     */
+    @Value("${hmdp.geo.index-cell-degrees:0.01}")
+    private double cellDegrees;
+
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+
+    private final Map<Long, Map<Long, Entry>> cells = new ConcurrentHashMap<>();
+
+    private volatile boolean ready;
+
+    /**
+     * 有商铺的网格的行列范围，只扩不缩，环扫描只看落在它里面的部分
+     */
+    private volatile long minCol = Long.MAX_VALUE;
+    private volatile long maxCol = Long.MIN_VALUE;
+    private volatile long minRow = Long.MAX_VALUE;
+    private volatile long maxRow = Long.MIN_VALUE;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> reloadLocal(Long.valueOf(new String(message.getBody()))),
+                new ChannelTopic(RedisConstants.SHOP_GEO_INDEX_CHANNEL));
+        try {
+            long start = System.currentTimeMillis();
+            load();
+            ready = true;
+            log.info("shop geo index built, {} shops in {} cells, {} ms", entries.size(), cells.size(), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            // queries keep going to redis
+            log.error("failed to build shop geo index", e);
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /*
+    called after a shop is inserted or updated, inside a transaction the row is read after commit
+     */
+    public void reload(Long id) {
+        if (!enabled || id == null) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    reloadAndPublish(id);
+                }
+            });
+        } else {
+            reloadAndPublish(id);
+        }
+    }
+
+    /*
+    the `limit` nearest shops within `maxMeters` of (x, y) that pass the filter, nearest first
+     */
+    public List<Hit> nearest(double x, double y, double maxMeters, int limit, Predicate<Entry> filter) {
+        if (limit <= 0 || entries.isEmpty()) {
+            return new ArrayList<>();
+        }
+        // worst case cell size over the latitudes the radius can reach
+        double maxLat = Math.min(89, Math.abs(y) + maxMeters / METERS_PER_DEGREE);
+        double cellMeters = cellDegrees * METERS_PER_DEGREE * Math.cos(Math.toRadians(maxLat));
+        int maxRing = (int) Math.ceil(maxMeters / cellMeters) + 1;
+        long col = col(x);
+        long row = row(y);
+        // occupied cells lie in [minCol, maxCol] x [minRow, maxRow]: rings before the box are empty,
+        // rings past the one covering it too, and only the part of a ring inside the box is scanned
+        long loCol = minCol;
+        long hiCol = maxCol;
+        long loRow = minRow;
+        long hiRow = maxRow;
+        long firstRing = Math.max(Math.max(loCol - col, col - hiCol), Math.max(loRow - row, row - hiRow));
+        long extentRing = Math.max(Math.max(col - loCol, hiCol - col), Math.max(row - loRow, hiRow - row));
+        maxRing = (int) Math.min(maxRing, Math.max(0, extentRing));
+        PriorityQueue<Hit> heap = new PriorityQueue<>(limit + 1, Comparator.comparingDouble(Hit::getDistance).reversed());
+        for (int r = (int) Math.min(Math.max(0, firstRing), maxRing + 1L); r <= maxRing; r++) {
+            // every shop of ring r and beyond is at least r - 1 cells away
+            if (heap.size() == limit && heap.peek().distance <= (r - 1) * cellMeters) {
+                break;
+            }
+            if (r == 0) {
+                scanCell(col, row, x, y, maxMeters, limit, filter, heap);
+                continue;
+            }
+            // top and bottom rows of the ring, corners included
+            for (long w : new long[]{row - r, row + r}) {
+                if (w < loRow || w > hiRow) {
+                    continue;
+                }
+                for (long c = Math.max(col - r, loCol); c <= Math.min(col + r, hiCol); c++) {
+                    scanCell(c, w, x, y, maxMeters, limit, filter, heap);
+                }
+            }
+            // left and right columns between them
+            for (long c : new long[]{col - r, col + r}) {
+                if (c < loCol || c > hiCol) {
+                    continue;
+                }
+                for (long w = Math.max(row - r + 1, loRow); w <= Math.min(row + r - 1, hiRow); w++) {
+                    scanCell(c, w, x, y, maxMeters, limit, filter, heap);
+                }
+            }
+        }
+        List<Hit> hits = new ArrayList<>(heap);
+        hits.sort(Comparator.comparingDouble(Hit::getDistance));
+        return hits;
+    }
+
+    /*
+    null arguments do not filter
+     */
+    public static Predicate<Entry> filter(Long typeId, Long minPrice, Long maxPrice, Integer minScore) {
+        return entry -> (typeId == null || typeId.equals(entry.typeId))
+                && (minPrice == null || entry.avgPrice != null && entry.avgPrice >= minPrice)
+                && (maxPrice == null || entry.avgPrice != null && entry.avgPrice <= maxPrice)
+                && (minScore == null || entry.score != null && entry.score >= minScore);
+    }
+
+    /*
+    haversine in meters, same earth radius as redis GEODIST
+     */
+    public static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double dLat = lat2 - lat1;
+        double dLon = Math.toRadians(x2 - x1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(lat1) * Math.cos(lat2) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.sqrt(a));
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("ready", ready);
+        stats.put("shops", entries.size());
+        stats.put("cells", cells.size());
+        stats.put("cellDegrees", cellDegrees);
+        return stats;
+    }
+
+    private void scanCell(long col, long row, double x, double y, double maxMeters, int limit,
+                          Predicate<Entry> filter, PriorityQueue<Hit> heap) {
+        Map<Long, Entry> cell = cells.get(cellKey(col, row));
+        if (cell == null) {
+            return;
+        }
+        for (Entry entry : cell.values()) {
+            if (!filter.test(entry)) {
+                continue;
+            }
+            double d = distance(x, y, entry.x, entry.y);
+            if (d > maxMeters || heap.size() == limit && d >= heap.peek().distance) {
+                continue;
+            }
+            heap.offer(new Hit(entry.id, d));
+            if (heap.size() > limit) {
+                heap.poll();
+            }
+        }
+    }
+
+    /*
+    keyset paging over the primary key, only the indexed columns
+     */
+    private void load() {
+        long maxId = 0;
+        while (true) {
+            List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                    .select("id", "type_id", "x", "y", "avg_price", "score")
+                    .gt("id", maxId).orderByAsc("id").last("limit " + PAGE_SIZE));
+            for (Shop shop : shops) {
+                put(shop);
+                maxId = shop.getId();
+            }
+            if (shops.size() < PAGE_SIZE) {
+                return;
+            }
+        }
+    }
+
+    private void reloadAndPublish(Long id) {
+        reloadLocal(id);
+        stringRedisTemplate.convertAndSend(RedisConstants.SHOP_GEO_INDEX_CHANNEL, id.toString());
+    }
+
+    private void reloadLocal(Long id) {
+        Shop shop = shopMapper.selectById(id);
+        if (shop == null) {
+            remove(id);
+        } else {
+            put(shop);
+        }
+    }
+
+    /*
+    writes are rare, serialized so a shop is never left in two cells
+     */
+    private synchronized void put(Shop shop) {
+        if (shop.getX() == null || shop.getY() == null) {
+            remove(shop.getId());
+            return;
+        }
+        Entry entry = new Entry(shop.getId(), shop.getX(), shop.getY(), shop.getTypeId(), shop.getAvgPrice(), shop.getScore());
+        Entry old = entries.put(entry.id, entry);
+        long key = cellKey(col(entry.x), row(entry.y));
+        if (old != null) {
+            long oldKey = cellKey(col(old.x), row(old.y));
+            if (oldKey != key) {
+                removeFromCell(oldKey, old.id);
+            }
+        }
+        cells.computeIfAbsent(key, k -> new ConcurrentHashMap<>()).put(entry.id, entry);
+        long col = col(entry.x);
+        long row = row(entry.y);
+        minCol = Math.min(minCol, col);
+        maxCol = Math.max(maxCol, col);
+        minRow = Math.min(minRow, row);
+        maxRow = Math.max(maxRow, row);
+    }
+
+    private synchronized void remove(Long id) {
+        Entry old = entries.remove(id);
+        if (old != null) {
+            removeFromCell(cellKey(col(old.x), row(old.y)), id);
+        }
+    }
+
+    private void removeFromCell(long key, Long id) {
+        Map<Long, Entry> cell = cells.get(key);
+        if (cell != null) {
+            cell.remove(id);
+            if (cell.isEmpty()) {
+                cells.remove(key);
+            }
+        }
+    }
+
+    private long col(double x) {
+        return (long) Math.floor((x + 180) / cellDegrees);
+    }
+
+    private long row(double y) {
+        return (long) Math.floor((y + 90) / cellDegrees);
+    }
+
+    private static long cellKey(long col, long row) {
+        return col << 32 | row & 0xFFFFFFFFL;
+    }
+
+    @Getter
+    public static class Entry {
+        private final Long id;
+        private final double x;
+        private final double y;
+        private final Long typeId;
+        private final Long avgPrice;
+        private final Integer score;
+
+        private Entry(Long id, double x, double y, Long typeId, Long avgPrice, Integer score) {
+            this.id = id;
+            this.x = x;
+            this.y = y;
+            this.typeId = typeId;
+            this.avgPrice = avgPrice;
+            this.score = score;
+        }
+    }
+
+    @Getter
+    public static class Hit {
+        private final Long id;
+        private final double distance;
+
+        private Hit(Long id, double distance) {
+            this.id = id;
+            this.distance = distance;
+        }
+    }
+}
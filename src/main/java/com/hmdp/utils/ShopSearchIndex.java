@@ -0,0 +1,303 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+in-process full-text index of shop name, area and address, so searching by keyword needs no
+LIKE '%name%' scan. text is lower-cased with everything but letters and digits dropped, and cut
+into character bigrams (unigrams for a one-char query), which works for chinese without a tokenizer.
+a shop is a candidate when it has enough of the query's grams: all of them for a short query, and
+for a longer one up to two missing, which is what one mistyped char costs, so typos still match.
+a keyword that is the start of a field is matched by its grams like any substring (prefix search).
+candidates are ranked by how many grams each field has (name > area > address), with a bonus for the
+whole keyword in a field and more for a field that starts with it, then by sold.
+the rows are kept in memory, built at startup with keyset paging and reloaded on all nodes through
+redis pub/sub after a shop is saved or updated
+ */
+@Slf4j
+@Component
+public class ShopSearchIndex {
+    private static final int PAGE_SIZE = 2000;
+    private static final double[] FIELD_WEIGHTS = {3, 2, 1};
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 关闭后按名称查询商铺回到数据库 like 查询
+     */
+    @Value("${hmdp.search.enabled:true}")
+    private boolean enabled;
+
+    private final Map<Long, Doc> docs = new ConcurrentHashMap<>();
+
+    private final Map<String, Set<Long>> postings = new ConcurrentHashMap<>();
+
+    private volatile boolean ready;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> reloadLocal(Long.valueOf(new String(message.getBody()))),
+                new ChannelTopic(RedisConstants.SHOP_SEARCH_INDEX_CHANNEL));
+        try {
+            long start = System.currentTimeMillis();
+            load();
+            ready = true;
+            log.info("shop search index built, {} shops, {} grams, {} ms", docs.size(), postings.size(), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            // searches keep going to the db
+            log.error("failed to build shop search index", e);
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /*
+    called after a shop is inserted or updated, inside a transaction the row is read after commit
+     */
+    public void reload(Long id) {
+        if (!enabled || id == null) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    reloadAndPublish(id);
+                }
+            });
+        } else {
+            reloadAndPublish(id);
+        }
+    }
+
+    /*
+    one page of the shops matching the keyword, best first. the shops are copies, free to modify
+     */
+    public List<Shop> search(String keyword, int from, int size) {
+        String query = normalize(keyword);
+        if (query.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Set<String> grams = grams(query);
+        int minMatch = grams.size() <= 2 ? grams.size() : Math.max((grams.size() + 1) / 2, grams.size() - 2);
+        Map<Long, Integer> matches = new HashMap<>();
+        for (String gram : grams) {
+            Set<Long> ids = postings.get(gram);
+            if (ids != null) {
+                for (Long id : ids) {
+                    matches.merge(id, 1, Integer::sum);
+                }
+            }
+        }
+        List<Scored> scored = new ArrayList<>();
+        for (Map.Entry<Long, Integer> entry : matches.entrySet()) {
+            Doc doc = docs.get(entry.getKey());
+            if (entry.getValue() >= minMatch && doc != null) {
+                scored.add(new Scored(doc, score(doc, query, grams)));
+            }
+        }
+        scored.sort((a, b) -> a.score != b.score ? Double.compare(b.score, a.score) : Integer.compare(b.doc.sold, a.doc.sold));
+        List<Shop> page = new ArrayList<>(size);
+        for (int i = from; i < scored.size() && i < from + size; i++) {
+            page.add(BeanUtil.copyProperties(scored.get(i).doc.shop, Shop.class));
+        }
+        return page;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("ready", ready);
+        stats.put("shops", docs.size());
+        stats.put("grams", postings.size());
+        return stats;
+    }
+
+    private double score(Doc doc, String query, Set<String> grams) {
+        double score = 0;
+        for (int f = 0; f < doc.fields.length; f++) {
+            String field = doc.fields[f];
+            int hit = 0;
+            for (String gram : grams) {
+                if (field.contains(gram)) {
+                    hit++;
+                }
+            }
+            double fieldScore = (double) hit / grams.size();
+            if (field.startsWith(query)) {
+                fieldScore += 2;
+            } else if (field.contains(query)) {
+                fieldScore += 1;
+            }
+            score += fieldScore * FIELD_WEIGHTS[f];
+        }
+        return score;
+    }
+
+    /*
+    keyset paging over the primary key
+     */
+    private void load() {
+        long maxId = 0;
+        while (true) {
+            List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                    .gt("id", maxId).orderByAsc("id").last("limit " + PAGE_SIZE));
+            for (Shop shop : shops) {
+                put(shop);
+                maxId = shop.getId();
+            }
+            if (shops.size() < PAGE_SIZE) {
+                return;
+            }
+        }
+    }
+
+    private void reloadAndPublish(Long id) {
+        reloadLocal(id);
+        stringRedisTemplate.convertAndSend(RedisConstants.SHOP_SEARCH_INDEX_CHANNEL, id.toString());
+    }
+
+    private void reloadLocal(Long id) {
+        Shop shop = shopMapper.selectById(id);
+        if (shop == null) {
+            remove(id);
+        } else {
+            put(shop);
+        }
+    }
+
+    /*
+    writes are rare, serialized so the postings of a shop always match its doc
+     */
+    private synchronized void put(Shop shop) {
+        Doc doc = new Doc(shop);
+        Doc old = docs.put(shop.getId(), doc);
+        Set<String> grams = doc.grams();
+        if (old != null) {
+            for (String gram : old.grams()) {
+                if (!grams.contains(gram)) {
+                    removePosting(gram, shop.getId());
+                }
+            }
+        }
+        for (String gram : grams) {
+            postings.computeIfAbsent(gram, k -> ConcurrentHashMap.newKeySet()).add(shop.getId());
+        }
+    }
+
+    private synchronized void remove(Long id) {
+        Doc old = docs.remove(id);
+        if (old != null) {
+            for (String gram : old.grams()) {
+                removePosting(gram, id);
+            }
+        }
+    }
+
+    private void removePosting(String gram, Long id) {
+        Set<Long> ids = postings.get(gram);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                postings.remove(gram);
+            }
+        }
+    }
+
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        text.codePoints().filter(Character::isLetterOrDigit).map(Character::toLowerCase).forEach(sb::appendCodePoint);
+        return sb.toString();
+    }
+
+    /*
+    bigrams, or the single char of a one-char text
+     */
+    static Set<String> grams(String text) {
+        Set<String> grams = new LinkedHashSet<>();
+        if (text.length() == 1) {
+            grams.add(text);
+        }
+        for (int i = 0; i + 2 <= text.length(); i++) {
+            grams.add(text.substring(i, i + 2));
+        }
+        return grams;
+    }
+
+    private static class Doc {
+        private final Shop shop;
+        private final String[] fields;
+        private final int sold;
+
+        private Doc(Shop shop) {
+            this.shop = shop;
+            this.fields = new String[]{normalize(shop.getName()), normalize(shop.getArea()), normalize(shop.getAddress())};
+            this.sold = shop.getSold() == null ? 0 : shop.getSold();
+        }
+
+        /*
+        unigrams too, so a one-char keyword finds every field containing it
+         */
+        private Set<String> grams() {
+            Set<String> grams = new LinkedHashSet<>();
+            for (String field : fields) {
+                for (int i = 0; i < field.length(); i++) {
+                    grams.add(field.substring(i, i + 1));
+                    if (i + 2 <= field.length()) {
+                        grams.add(field.substring(i, i + 2));
+                    }
+                }
+            }
+            return grams;
+        }
+    }
+
+    private static class Scored {
+        private final Doc doc;
+        private final double score;
+
+        private Scored(Doc doc, double score) {
+            this.doc = doc;
+            this.score = score;
+        }
+    }
+}
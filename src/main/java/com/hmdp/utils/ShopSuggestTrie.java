@@ -0,0 +1,306 @@
+package com.hmdp.utils;
+
+import cn.hutool.extra.pinyin.PinyinUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.ShopSuggestDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+in-process prefix trie of shop names for search-as-you-type. every node keeps the top-K shops of its
+subtree (sold desc, then score desc), so a suggestion is a walk down the prefix and a copy of that list.
+the top-K of a node is always within its own shops plus the top-K of its children, so after a shop
+changes only the nodes on its old and new paths are recomputed, bottom up.
+keys are the normalized name, the full pinyin and the initials of it (hutool PinyinUtil over pinyin4j,
+names only if no engine can be loaded). built at startup with keyset paging, reloaded on all nodes
+through redis pub/sub after a shop is saved or updated
+ */
+@Slf4j
+@Component
+public class ShopSuggestTrie {
+    private static final int PAGE_SIZE = 2000;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 关闭后联想接口返回空列表
+     */
+    @Value("${hmdp.suggest.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 每个前缀保留的候选数
+     */
+    @Value("${hmdp.suggest.top-k:10}")
+    private int topK;
+
+    /**
+     * 是否同时索引拼音和拼音首字母，拼音引擎为pinyin4j
+     */
+    @Value("${hmdp.suggest.pinyin:true}")
+    private boolean pinyin;
+
+    private final Node root = new Node();
+
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+
+    private final Comparator<Long> ranking = Comparator
+            .comparing((Long id) -> entries.get(id).sold, Comparator.reverseOrder())
+            .thenComparing(id -> entries.get(id).score, Comparator.reverseOrder())
+            .thenComparing(Comparator.naturalOrder());
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        if (pinyin) {
+            try {
+                PinyinUtil.getPinyin("a");
+            } catch (Throwable e) {
+                // pinyin4j is a dependency, only a broken classpath ends up here
+                pinyin = false;
+                log.warn("no pinyin engine found, shop suggestions are indexed by name only", e);
+            }
+        }
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> reloadLocal(Long.valueOf(new String(message.getBody()))),
+                new ChannelTopic(RedisConstants.SHOP_SUGGEST_INDEX_CHANNEL));
+        try {
+            long start = System.currentTimeMillis();
+            load();
+            log.info("shop suggest trie built, {} shops, {} ms", entries.size(), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            log.error("failed to build shop suggest trie", e);
+        }
+    }
+
+    /*
+    called after a shop is inserted or updated, inside a transaction the row is read after commit
+     */
+    public void reload(Long id) {
+        if (!enabled || id == null) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    reloadAndPublish(id);
+                }
+            });
+        } else {
+            reloadAndPublish(id);
+        }
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    /*
+    the best `limit` shops (at most top-K) whose name, pinyin or initials start with the prefix
+     */
+    public List<ShopSuggestDTO> suggest(String prefix, int limit) {
+        String key = ShopSearchIndex.normalize(prefix);
+        if (key.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Node node = root;
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.children.get(key.charAt(i));
+        }
+        if (node == null) {
+            return Collections.emptyList();
+        }
+        Long[] top = node.top;
+        List<ShopSuggestDTO> suggestions = new ArrayList<>(Math.max(0, Math.min(limit, top.length)));
+        for (int i = 0; i < top.length && suggestions.size() < limit; i++) {
+            Entry entry = entries.get(top[i]);
+            if (entry != null) {
+                suggestions.add(entry.toDTO());
+            }
+        }
+        return suggestions;
+    }
+
+    /*
+    keyset paging over the primary key, the top-K lists are computed once at the end
+     */
+    private synchronized void load() {
+        long maxId = 0;
+        while (true) {
+            List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                    .select("id", "name", "area", "sold", "score")
+                    .gt("id", maxId).orderByAsc("id").last("limit " + PAGE_SIZE));
+            for (Shop shop : shops) {
+                Entry entry = new Entry(shop, keys(shop.getName()));
+                entries.put(entry.id, entry);
+                for (String key : entry.keys) {
+                    path(key, true).get(key.length()).ids.add(entry.id);
+                }
+                maxId = shop.getId();
+            }
+            if (shops.size() < PAGE_SIZE) {
+                break;
+            }
+        }
+        rank(root);
+    }
+
+    private void reloadAndPublish(Long id) {
+        reloadLocal(id);
+        stringRedisTemplate.convertAndSend(RedisConstants.SHOP_SUGGEST_INDEX_CHANNEL, id.toString());
+    }
+
+    /*
+    takes the shop off its old paths and puts it on the new ones, then re-ranks both paths bottom up
+     */
+    private synchronized void reloadLocal(Long id) {
+        Shop shop = shopMapper.selectById(id);
+        Entry old = entries.get(id);
+        List<List<Node>> paths = new ArrayList<>();
+        if (old != null) {
+            for (String key : old.keys) {
+                List<Node> path = path(key, false);
+                if (path != null) {
+                    path.get(key.length()).ids.remove(id);
+                    paths.add(path);
+                }
+            }
+        }
+        if (shop == null) {
+            entries.remove(id);
+        } else {
+            Entry entry = new Entry(shop, keys(shop.getName()));
+            entries.put(id, entry);
+            for (String key : entry.keys) {
+                List<Node> path = path(key, true);
+                path.get(key.length()).ids.add(id);
+                paths.add(path);
+            }
+        }
+        for (List<Node> path : paths) {
+            for (int i = path.size() - 1; i >= 0; i--) {
+                rankNode(path.get(i));
+            }
+        }
+    }
+
+    /*
+    nodes from the root to the end of the key, created on the way when `create`
+     */
+    private List<Node> path(String key, boolean create) {
+        List<Node> path = new ArrayList<>(key.length() + 1);
+        Node node = root;
+        path.add(node);
+        for (int i = 0; i < key.length(); i++) {
+            Node child = node.children.get(key.charAt(i));
+            if (child == null) {
+                if (!create) {
+                    return null;
+                }
+                child = new Node();
+                node.children.put(key.charAt(i), child);
+            }
+            node = child;
+            path.add(node);
+        }
+        return path;
+    }
+
+    private void rank(Node node) {
+        for (Node child : node.children.values()) {
+            rank(child);
+        }
+        rankNode(node);
+    }
+
+    private void rankNode(Node node) {
+        Set<Long> candidates = new LinkedHashSet<>(node.ids);
+        for (Node child : node.children.values()) {
+            Collections.addAll(candidates, child.top);
+        }
+        candidates.removeIf(id -> !entries.containsKey(id));
+        List<Long> sorted = new ArrayList<>(candidates);
+        sorted.sort(ranking);
+        node.top = sorted.subList(0, Math.min(topK, sorted.size())).toArray(new Long[0]);
+    }
+
+    private List<String> keys(String name) {
+        String normalized = ShopSearchIndex.normalize(name);
+        Set<String> keys = new LinkedHashSet<>();
+        if (!normalized.isEmpty()) {
+            keys.add(normalized);
+        }
+        if (pinyin && !normalized.isEmpty()) {
+            keys.add(ShopSearchIndex.normalize(PinyinUtil.getPinyin(normalized, "")));
+            keys.add(ShopSearchIndex.normalize(PinyinUtil.getFirstLetter(normalized, "")));
+        }
+        keys.remove("");
+        return new ArrayList<>(keys);
+    }
+
+    private static class Node {
+        private final Map<Character, Node> children = new ConcurrentHashMap<>();
+        /**
+         * 以该节点结尾的商铺
+         */
+        private final Set<Long> ids = ConcurrentHashMap.newKeySet();
+        private volatile Long[] top = new Long[0];
+    }
+
+    private static class Entry {
+        private final Long id;
+        private final String name;
+        private final String area;
+        private final int sold;
+        private final int score;
+        private final List<String> keys;
+
+        private Entry(Shop shop, List<String> keys) {
+            this.id = shop.getId();
+            this.name = shop.getName();
+            this.area = shop.getArea();
+            this.sold = shop.getSold() == null ? 0 : shop.getSold();
+            this.score = shop.getScore() == null ? 0 : shop.getScore();
+            this.keys = keys;
+        }
+
+        private ShopSuggestDTO toDTO() {
+            ShopSuggestDTO dto = new ShopSuggestDTO();
+            dto.setId(id);
+            dto.setName(name);
+            dto.setArea(area);
+            dto.setSold(sold);
+            dto.setScore(score);
+            return dto;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/*
+in-process id, no redis: second timestamp << 32 | 1 << 31 | workerId << 21 | sequence.
+the flag bit is never set in ids of the redis counters, so switching engines, or nodes running
+different engines, can not issue the same id. every node needs its own workerId (0 ~ 1023),
+2M ids per second per node. keyPrefix is not needed, ids are unique across all prefixes.
+the clock is System.currentTimeMillis, not the local wall clock, so a dst fall-back is not a rollback.
+ids issued before that change counted local time as utc (at most 14h ahead of the epoch), so the
+timestamp counts from 14h before BEGIN_TIMESTAMP and new ids stay above every id issued before
+ */
+public class SnowflakeIdWorker implements IIdWorker {
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = COUNT_BITS - 1 - WORKER_BITS;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    /**
+     * 时钟回拨在这个范围内时继续使用上一秒，超过就拒绝生成
+     */
+    private static final long MAX_BACKWARD_SECONDS = 5;
+    /**
+     * 时间戳的起点，比 BEGIN_TIMESTAMP 早14小时（最大时区偏移）
+     */
+    private static final long EPOCH = BEGIN_TIMESTAMP - TimeUnit.HOURS.toSeconds(14);
+
+    private final long workerId;
+    private final LongSupplier clock;
+    private long lastTimestamp = -1;
+    private long sequence;
+
+    public SnowflakeIdWorker(long workerId) {
+        this(workerId, () -> System.currentTimeMillis() / 1000);
+    }
+
+    /*
+    clock returns epoch seconds
+     */
+    SnowflakeIdWorker(long workerId, LongSupplier clock) {
+        if (workerId < 0 || workerId > MAX_WORKER_ID) {
+            throw new IllegalArgumentException("worker id must be between 0 and " + MAX_WORKER_ID);
+        }
+        this.workerId = workerId;
+        this.clock = clock;
+    }
+
+    @Override
+    public synchronized long nextId(String keyPrefix) {
+        long timestamp = currentTimestamp();
+        if (timestamp < lastTimestamp) {
+            // clock moved back, keep counting in the last second so ids never go down
+            if (lastTimestamp - timestamp > MAX_BACKWARD_SECONDS) {
+                throw new RuntimeException("clock moved backwards " + (lastTimestamp - timestamp) + "s, refuse to generate id");
+            }
+            timestamp = lastTimestamp;
+        }
+        if (timestamp == lastTimestamp) {
+            sequence = (sequence + 1) & MAX_SEQUENCE;
+            if (sequence == 0) {
+                // sequence of this second used up, wait for the next one
+                timestamp = waitNextSecond(lastTimestamp);
+            }
+        } else {
+            sequence = 0;
+        }
+        lastTimestamp = timestamp;
+        return timestamp << COUNT_BITS | SNOWFLAKE_FLAG | workerId << SEQUENCE_BITS | sequence;
+    }
+
+    private long waitNextSecond(long last) {
+        long timestamp = currentTimestamp();
+        while (timestamp <= last) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            timestamp = currentTimestamp();
+        }
+        return timestamp;
+    }
+
+    private long currentTimestamp() {
+        return clock.getAsLong() - EPOCH;
+    }
+}
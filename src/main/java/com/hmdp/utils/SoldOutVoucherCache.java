@@ -0,0 +1,97 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+local sold-out flags of seckill vouchers, so requests after a sale ends are rejected without redis.
+a flag is set by the first "no stock" result of the lua script and cleared on every node
+through redis pub/sub when the stock of the voucher is replenished. stock can also come back
+without a message (a lost pub/sub message, a stale pending order released), so a flag expires
+after `sold-out-ttl-ms` and the next request checks the redis stock again
+ */
+@Slf4j
+@Component
+public class SoldOutVoucherCache {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 售罄标记的有效期，过期后重新以redis库存为准
+     */
+    @Value("${hmdp.seckill.sold-out-ttl-ms:5000}")
+    private long soldOutTtlMs;
+
+    /**
+     * voucherId -> 标记时间
+     */
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    /**
+     * 每次清除标记都加一，脚本执行前读到的epoch和标记时不一致，说明期间补过库存，不能再标记
+     */
+    private final AtomicLong epoch = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String voucherId = new String(message.getBody());
+            log.debug("seckill voucher {} replenished", voucherId);
+            clear(Long.valueOf(voucherId));
+        }, new ChannelTopic(RedisConstants.SECKILL_REPLENISHED_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long markedAt = soldOut.get(voucherId);
+        if (markedAt == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - markedAt < soldOutTtlMs) {
+            return true;
+        }
+        // let this request reach the lua script, it marks the voucher again if still sold out
+        soldOut.remove(voucherId, markedAt);
+        return false;
+    }
+
+    public long epoch() {
+        return epoch.get();
+    }
+
+    public void markSoldOut(Long voucherId, long seenEpoch) {
+        if (epoch.get() != seenEpoch) {
+            return;
+        }
+        Long markedAt = System.currentTimeMillis();
+        soldOut.put(voucherId, markedAt);
+        // cleared while we were adding
+        if (epoch.get() != seenEpoch) {
+            soldOut.remove(voucherId, markedAt);
+        }
+    }
+
+    /*
+    tell all nodes, including this one, that the voucher has stock again
+     */
+    public void publishReplenished(Long voucherId) {
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_REPLENISHED_CHANNEL, voucherId.toString());
+    }
+
+    private void clear(Long voucherId) {
+        epoch.incrementAndGet();
+        soldOut.remove(voucherId);
+    }
+}
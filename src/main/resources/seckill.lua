@@ -6,9 +6,14 @@
 local voucherId = ARGV[1]
 local userId = ARGV[2]
 local orderId = ARGV[3]
+-- stream shard of this user
+local streamKey = ARGV[4]
+-- order status hash and its ttl, the owner is kept in field <orderId>:user
+local statusKey = ARGV[5]
+local statusTtl = ARGV[6]
 
-local stockKey = 'seckill:stock'..voucherId
-local orderKey = 'seckill:order'..voucherId
+local stockKey = 'seckill:stock:'..voucherId
+local orderKey = 'seckill:order:'..voucherId
 
 if (tonumber(redis.call('get', stockKey)) <= 0) then
     -- not enough stock
@@ -21,6 +26,9 @@ end
 redis.call('incrby', stockKey, -1)
 redis.call('sadd', orderKey, userId)
 -- send msg to queue
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+redis.call('hset', statusKey, orderId, 'QUEUED')
+redis.call('hset', statusKey, orderId..':user', userId)
+redis.call('expire', statusKey, statusTtl)
 
 return 0
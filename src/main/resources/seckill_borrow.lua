@@ -0,0 +1,9 @@
+-- take half of the stock of a sibling shard (at least 1), return how much was taken.
+-- one key only, so it runs in the sibling's slot; the caller adds the stock to the home shard
+local stock = tonumber(redis.call('get', KEYS[1])) or 0
+if (stock <= 0) then
+    return 0
+end
+local take = math.ceil(stock / 2)
+redis.call('incrby', KEYS[1], -take)
+return take
@@ -0,0 +1,14 @@
+-- undo seckill_shard.lua when the order could not be queued, all keys of one shard
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local pendingKey = KEYS[3]
+local userId = ARGV[1]
+local orderId = ARGV[2]
+
+if (redis.call('hdel', pendingKey, orderId) == 0) then
+    -- already released, or queued by the recovery
+    return 0
+end
+redis.call('srem', orderKey, userId)
+redis.call('incrby', stockKey, 1)
+return 1
@@ -0,0 +1,20 @@
+-- stock, order set and pending hash of one shard, same hash tag so they live in the same slot
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local pendingKey = KEYS[3]
+local userId = ARGV[1]
+local orderId = ARGV[2]
+local now = ARGV[3]
+
+if (redis.call('sismember', orderKey, userId) == 1) then
+    return 2
+end
+if ((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
+    -- not enough stock in this shard
+    return 1
+end
+redis.call('incrby', stockKey, -1)
+redis.call('sadd', orderKey, userId)
+-- the order until it is in the stream, a crash before the xadd leaves it here to be queued again
+redis.call('hset', pendingKey, orderId, userId .. ':' .. now)
+return 0
@@ -0,0 +1,125 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillOrderStatus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.reflect.Constructor;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class VoucherOrderServiceImplTest {
+    private final Map<String, VoucherOrder> rowsByUserVoucher = new HashMap<>();
+    private final Map<Long, VoucherOrder> rowsById = new HashMap<>();
+    private ISeckillVoucherService seckillVoucherService;
+    private VoucherOrderServiceImpl service;
+
+    @BeforeEach
+    void setUp() {
+        // insert ignore on the (user_id, voucher_id) unique key
+        VoucherOrderMapper mapper = mock(VoucherOrderMapper.class);
+        when(mapper.insertIgnore(any())).thenAnswer(invocation -> {
+            VoucherOrder order = invocation.getArgument(0);
+            if (rowsByUserVoucher.putIfAbsent(order.getUserId() + ":" + order.getVoucherId(), order) != null) {
+                return 0;
+            }
+            rowsById.put(order.getId(), order);
+            return 1;
+        });
+        when(mapper.selectById(any())).thenAnswer(invocation -> rowsById.get((Long) invocation.getArgument(0)));
+        seckillVoucherService = mock(ISeckillVoucherService.class);
+        when(seckillVoucherService.decreaseStock(anyLong(), anyInt())).thenReturn(true);
+        service = new VoucherOrderServiceImpl();
+        ReflectionTestUtils.setField(service, "baseMapper", mapper);
+        ReflectionTestUtils.setField(service, "seckillVoucherService", seckillVoucherService);
+    }
+
+    private static VoucherOrder order(long id, long userId, long voucherId) {
+        VoucherOrder order = new VoucherOrder();
+        order.setId(id);
+        order.setUserId(userId);
+        order.setVoucherId(voucherId);
+        return order;
+    }
+
+    @Test
+    void replayOfSameOrderInsertsOnceAndDecrementsStockOnce() {
+        assertTrue(service.createVoucherOrder(order(100L, 1L, 7L)));
+        assertTrue(service.createVoucherOrder(order(100L, 1L, 7L)));
+        assertTrue(service.createVoucherOrder(order(100L, 1L, 7L)));
+
+        assertEquals(1, rowsById.size());
+        verify(seckillVoucherService, times(1)).decreaseStock(eq(7L), eq(1));
+    }
+
+    @Test
+    void secondOrderOfSameUserIsRejectedWithoutStock() {
+        assertTrue(service.createVoucherOrder(order(100L, 1L, 7L)));
+        assertFalse(service.createVoucherOrder(order(101L, 1L, 7L)));
+
+        assertEquals(1, rowsById.size());
+        verify(seckillVoucherService, times(1)).decreaseStock(eq(7L), eq(1));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void malformedEntryIsDeadLetteredWithItsRawFieldsAndAcked() throws Exception {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        StreamOperations<String, Object, Object> streamOps = mock(StreamOperations.class);
+        when(template.opsForStream()).thenReturn(streamOps);
+        SeckillOrderStatus status = mock(SeckillOrderStatus.class);
+        // marking the order failed blows up too, the entry must still be acked
+        doThrow(new IllegalStateException("redis down")).when(status).update(any(), anyString());
+        ReflectionTestUtils.setField(service, "stringRedisTemplate", template);
+        ReflectionTestUtils.setField(service, "seckillOrderStatus", status);
+
+        Map<Object, Object> fields = new HashMap<>();
+        fields.put("id", "100");
+        fields.put("userId", "not-a-number");
+        fields.put("extra", "kept");
+        MapRecord<String, Object, Object> record = StreamRecords.newRecord()
+                .in("stream.orders:0").withId(RecordId.of("1-0")).ofMap(fields);
+        ReflectionTestUtils.invokeMethod(handler(), "handleRecords", Collections.singletonList(record));
+
+        ArgumentCaptor<Map<Object, Object>> dlq = ArgumentCaptor.forClass(Map.class);
+        verify(streamOps).add(eq(RedisConstants.SECKILL_ORDER_DLQ), dlq.capture());
+        assertEquals("not-a-number", dlq.getValue().get("userId"));
+        assertEquals("kept", dlq.getValue().get("extra"));
+        assertEquals("stream.orders:0", dlq.getValue().get("stream"));
+        verify(streamOps).acknowledge("stream.orders:0", RedisConstants.SECKILL_ORDER_GROUP, RecordId.of("1-0"));
+    }
+
+    private Object handler() throws Exception {
+        Class<?> type = Class.forName(VoucherOrderServiceImpl.class.getName() + "$VoucherOrderHandler");
+        Constructor<?> constructor = type.getDeclaredConstructor(VoucherOrderServiceImpl.class, String.class, List.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(service, "c0", Collections.emptyList());
+    }
+}
@@ -0,0 +1,35 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class BinaryCacheCodecTest {
+    private final BinaryCacheCodec codec = new BinaryCacheCodec();
+
+    @Test
+    void roundTrip() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("海底捞");
+        shop.setX(120.1);
+        Shop decoded = codec.decode(codec.encode(shop), Shop.class);
+        assertEquals(shop.getId(), decoded.getId());
+        assertEquals(shop.getName(), decoded.getName());
+        assertEquals(shop.getX(), decoded.getX());
+    }
+
+    @Test
+    void truncatedValueIsAMiss() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        byte[] bytes = codec.encode(shop);
+        for (int length = 1; length < bytes.length; length++) {
+            assertNull(codec.decode(Arrays.copyOf(bytes, length), Shop.class));
+        }
+    }
+}
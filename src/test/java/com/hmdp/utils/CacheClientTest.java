@@ -0,0 +1,122 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.listener.Topic;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CacheClientTest {
+    private static final String KEY = "cache:shop:1";
+
+    private MessageListener invalidationListener;
+    private ValueOperations<String, String> valueOperations;
+    private CacheClient cacheClient;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        // redis always misses, every read goes to the db fallback
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        valueOperations = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(valueOperations);
+        HotKeyDetector hotKeyDetector = mock(HotKeyDetector.class);
+        CacheCodec codec = mock(CacheCodec.class);
+        when(codec.encode(any())).thenReturn(new byte[]{1});
+        RedisMessageListenerContainer container = mock(RedisMessageListenerContainer.class);
+        cacheClient = new CacheClient(template, codec, hotKeyDetector, container, true, 100, 60);
+        ArgumentCaptor<MessageListener> listener = ArgumentCaptor.forClass(MessageListener.class);
+        verify(container).addMessageListener(listener.capture(), any(Topic.class));
+        invalidationListener = listener.getValue();
+    }
+
+    @Test
+    void valueReadBeforeABroadcastIsNotKeptInL1() {
+        AtomicInteger loads = new AtomicInteger();
+        String first = cacheClient.queryByIdWithoutCachePenetration("cache:shop:", 1L, String.class, id -> {
+            loads.incrementAndGet();
+            // another node updates the shop while this read is in flight
+            invalidationListener.onMessage(new DefaultMessage(new byte[0], KEY.getBytes(StandardCharsets.UTF_8)), null);
+            return "old";
+        }, 30L, TimeUnit.MINUTES);
+        assertEquals("old", first);
+        String second = cacheClient.queryByIdWithoutCachePenetration("cache:shop:", 1L, String.class, id -> {
+            loads.incrementAndGet();
+            return "new";
+        }, 30L, TimeUnit.MINUTES);
+        assertEquals("new", second);
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void valueReadWithoutInvalidationIsServedFromL1() {
+        AtomicInteger loads = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            cacheClient.queryByIdWithoutCachePenetration("cache:shop:", 1L, String.class, id -> {
+                loads.incrementAndGet();
+                return "value";
+            }, 30L, TimeUnit.MINUTES);
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void coldLogicalExpireKeyIsLoadedOncePerNode() throws Exception {
+        when(valueOperations.setIfAbsent(anyString(), anyString(), anyLong(), eq(TimeUnit.SECONDS))).thenReturn(true);
+        AtomicInteger loads = new AtomicInteger();
+        int readers = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(readers);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < readers; i++) {
+                results.add(pool.submit(() -> {
+                    start.await();
+                    return cacheClient.queryWithLogicalExpire("cache:shop:", 1L, String.class, id -> {
+                        loads.incrementAndGet();
+                        sleep(200);
+                        return "value";
+                    }, 30L, TimeUnit.MINUTES);
+                }));
+            }
+            start.countDown();
+            for (Future<String> result : results) {
+                assertEquals("value", result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
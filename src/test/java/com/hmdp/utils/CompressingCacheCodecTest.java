@@ -0,0 +1,113 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Slf4j
+class CompressingCacheCodecTest {
+    private static final int ROUNDS = 5_000;
+
+    private final CompressingCacheCodec codec = new CompressingCacheCodec(new BinaryCacheCodec(), 1024);
+
+    @Test
+    void roundTrip() {
+        Blog blog = blog();
+        byte[] bytes = codec.encode(blog);
+        assertEquals('Z', bytes[0]);
+        assertEquals(blog.getContent(), codec.decode(bytes, Blog.class).getContent());
+    }
+
+    @Test
+    void truncatedOrForgedHeaderIsAMiss() {
+        byte[] bytes = codec.encode(blog());
+        for (int length = 1; length < 5; length++) {
+            assertNull(codec.decode(Arrays.copyOf(bytes, length), Blog.class));
+        }
+        byte[] negative = bytes.clone();
+        negative[1] = (byte) 0x80;
+        assertNull(codec.decode(negative, Blog.class));
+        byte[] huge = bytes.clone();
+        huge[1] = 0x7F;
+        assertNull(codec.decode(huge, Blog.class));
+    }
+
+    /*
+    size and encode + decode time of each codec for a shop and a long blog,
+    -Dcodec.test.rounds=... for a longer run
+     */
+    @Test
+    void sizeAndSpeedAgainstJson() {
+        CacheCodec json = new JsonCacheCodec();
+        CacheCodec binary = new BinaryCacheCodec();
+        int rounds = Integer.getInteger("codec.test.rounds", ROUNDS);
+        for (Object value : new Object[]{shop(), blog()}) {
+            int jsonSize = json.encode(value).length;
+            int binarySize = binary.encode(value).length;
+            int compressedSize = codec.encode(value).length;
+            log.info("{}: json {} bytes {} us/op, binary {} bytes {} us/op, binary+deflate {} bytes {} us/op",
+                    value.getClass().getSimpleName(),
+                    jsonSize, micros(json, value, rounds),
+                    binarySize, micros(binary, value, rounds),
+                    compressedSize, micros(codec, value, rounds));
+            assertTrue(binarySize < jsonSize);
+            assertTrue(compressedSize <= binarySize);
+        }
+    }
+
+    private static double micros(CacheCodec codec, Object value, int rounds) {
+        // warm up before timing
+        for (int i = 0; i < rounds / 4; i++) {
+            codec.decode(codec.encode(value), value.getClass());
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            codec.decode(codec.encode(value), value.getClass());
+        }
+        return Math.round((System.nanoTime() - start) / 10.0 / rounds) / 100.0;
+    }
+
+    private static Shop shop() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        shop.setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg");
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+        shop.setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        return shop;
+    }
+
+    private static Blog blog() {
+        Blog blog = new Blog();
+        blog.setId(4L);
+        blog.setShopId(4L);
+        blog.setUserId(2L);
+        blog.setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩");
+        blog.setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg,/imgs/blogs/4/10/2f07e3c9-ddce-482d-9ea7-c21450f8d7cd.jpg");
+        blog.setContent(StrUtil.repeat("生活就是一半烟火·一半诗意<br>手执烟火谋生活·心怀诗意以谋爱·<br>", 40));
+        blog.setLiked(1);
+        blog.setComments(104);
+        blog.setCreateTime(LocalDateTime.of(2021, 12, 28, 19, 50, 1));
+        blog.setUpdateTime(LocalDateTime.of(2022, 3, 10, 14, 26, 34));
+        return blog;
+    }
+}
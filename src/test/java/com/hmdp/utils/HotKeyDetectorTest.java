@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HotKeyDetectorTest {
+    private static final int SLOTS = 5;
+
+    private HotKeyDetector detector;
+
+    @BeforeEach
+    void setUp() {
+        detector = new HotKeyDetector();
+        ReflectionTestUtils.setField(detector, "enabled", true);
+        // the window is rotated by hand, keep the scheduled rotation out of the way
+        ReflectionTestUtils.setField(detector, "windowSeconds", 3600);
+        ReflectionTestUtils.setField(detector, "slotCount", SLOTS);
+        ReflectionTestUtils.setField(detector, "width", 4096);
+        ReflectionTestUtils.setField(detector, "threshold", 100L);
+        ReflectionTestUtils.setField(detector, "topK", 2);
+        ReflectionTestUtils.setField(detector, "localTtlMs", 60_000L);
+        ReflectionTestUtils.invokeMethod(detector, "init");
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(detector, "destroy");
+    }
+
+    @Test
+    void promotedWhileHotAndDemotedOnceTheWindowPasses() {
+        String key = "blog:liked:1";
+        AtomicInteger loads = new AtomicInteger();
+        for (int i = 0; i < 100; i++) {
+            detector.read(key, "top5", loads::incrementAndGet);
+        }
+        assertEquals(100, loads.get());
+        rotate();
+        assertTrue(detector.isHot(key));
+
+        // served from the local copy, one load per variant
+        for (int i = 0; i < 50; i++) {
+            detector.read(key, "top5", loads::incrementAndGet);
+            detector.read(key, "likers", loads::incrementAndGet);
+        }
+        assertEquals(102, loads.get());
+        detector.invalidate(key);
+        detector.read(key, "top5", loads::incrementAndGet);
+        assertEquals(103, loads.get());
+
+        // no reads for a whole window
+        for (int i = 0; i < SLOTS; i++) {
+            rotate();
+        }
+        assertFalse(detector.isHot(key));
+        detector.read(key, "top5", loads::incrementAndGet);
+        assertEquals(104, loads.get());
+    }
+
+    @Test
+    void fullCandidateSetMakesRoomForAHotterKey() {
+        // topK 2 keeps at most 20 candidates, each of these is just above the candidate threshold
+        for (int k = 0; k < 20; k++) {
+            for (int i = 0; i < 10; i++) {
+                detector.record("feed:" + k);
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            detector.record("feed:hot");
+        }
+        rotate();
+        assertTrue(detector.isHot("feed:hot"));
+        Map<String, Object> first = detector.topK().get(0);
+        assertEquals("feed:hot", first.get("key"));
+    }
+
+    private void rotate() {
+        ReflectionTestUtils.invokeMethod(detector, "rotate");
+    }
+}
@@ -0,0 +1,87 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class IdBloomFilterTest {
+    /**
+     * the highest shop id in the table, rows 1..tableMaxId exist
+     */
+    private final AtomicLong tableMaxId = new AtomicLong(1000);
+    private IdBloomFilter filter;
+
+    @BeforeEach
+    void setUp() {
+        ShopMapper shopMapper = mock(ShopMapper.class);
+        when(shopMapper.selectObjs(any())).thenAnswer(invocation -> {
+            QueryWrapper<?> wrapper = invocation.getArgument(0);
+            if ("max(id)".equals(wrapper.getSqlSelect())) {
+                return Collections.singletonList(tableMaxId.get());
+            }
+            // the sweep only ever sees the first 1000 rows here, params are bound by building the segment
+            wrapper.getSqlSegment();
+            long afterId = ((Number) wrapper.getParamNameValuePairs().values().iterator().next()).longValue();
+            List<Object> ids = new ArrayList<>();
+            for (long id = afterId + 1; id <= 1000; id++) {
+                ids.add(id);
+            }
+            return ids;
+        });
+        BlogMapper blogMapper = mock(BlogMapper.class);
+        when(blogMapper.selectObjs(any())).thenReturn(new ArrayList<>());
+        UserMapper userMapper = mock(UserMapper.class);
+        when(userMapper.selectObjs(any())).thenReturn(new ArrayList<>());
+        filter = new IdBloomFilter();
+        ReflectionTestUtils.setField(filter, "shopMapper", shopMapper);
+        ReflectionTestUtils.setField(filter, "blogMapper", blogMapper);
+        ReflectionTestUtils.setField(filter, "userMapper", userMapper);
+        ReflectionTestUtils.setField(filter, "redisMessageListenerContainer", mock(RedisMessageListenerContainer.class));
+        ReflectionTestUtils.setField(filter, "enabled", true);
+        ReflectionTestUtils.setField(filter, "fpp", 0.001);
+        ReflectionTestUtils.setField(filter, "refreshSeconds", 300L);
+        ReflectionTestUtils.setField(filter, "maxIdCheckMs", 0L);
+        ReflectionTestUtils.invokeMethod(filter, "init");
+    }
+
+    @Test
+    void sweptIdsPass() {
+        for (long id = 1; id <= 1000; id++) {
+            assertTrue(filter.mightContain(IdBloomFilter.SHOP, id));
+        }
+    }
+
+    @Test
+    void newIdWhoseAddWasLostPassesUpToTheTableMax() {
+        tableMaxId.set(1005);
+        assertTrue(filter.mightContain(IdBloomFilter.SHOP, 1003L));
+        assertTrue(filter.mightContain(IdBloomFilter.SHOP, 1005L));
+    }
+
+    @Test
+    void randomLargeIdsAreStillRejected() {
+        int passed = 0;
+        for (long id = 999_999_000L; id < 1_000_000_000L; id++) {
+            if (filter.mightContain(IdBloomFilter.SHOP, id)) {
+                passed++;
+            }
+        }
+        // only false positives of the filter itself
+        assertTrue(passed < 10, "passed " + passed);
+    }
+}
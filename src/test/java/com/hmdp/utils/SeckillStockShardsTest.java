@@ -0,0 +1,159 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SeckillStockShardsTest {
+    private static final Long VOUCHER = 7L;
+
+    private final Map<String, Long> stock = new HashMap<>();
+    private final Map<String, Set<String>> orders = new HashMap<>();
+    private final Map<String, Map<Object, Object>> pending = new HashMap<>();
+    /**
+     * runs before each borrow, to move stock the way a concurrent borrower would
+     */
+    private Runnable beforeBorrow = () -> { };
+    /**
+     * the shard the next increment fails on, to simulate a redis error between the two borrow steps
+     */
+    private String failingIncrement;
+    private SeckillStockShards shards;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        // seckill_shard.lua, seckill_borrow.lua and seckill_release.lua on an in-memory redis
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        when(template.execute(any(RedisScript.class), anyList(), any(), any(), any())).thenAnswer(invocation -> {
+            List<String> keys = invocation.getArgument(1);
+            Set<String> users = orders.computeIfAbsent(keys.get(1), k -> new HashSet<>());
+            Map<Object, Object> shardPending = pending.computeIfAbsent(keys.get(2), k -> new HashMap<>());
+            String user = invocation.getArgument(2);
+            if (users.contains(user)) {
+                return 2L;
+            }
+            if (stock.getOrDefault(keys.get(0), 0L) <= 0) {
+                return 1L;
+            }
+            stock.merge(keys.get(0), -1L, Long::sum);
+            users.add(user);
+            shardPending.put(invocation.getArgument(3), user + ":" + invocation.getArgument(4));
+            return 0L;
+        });
+        when(template.execute(any(RedisScript.class), anyList(), any(), any())).thenAnswer(invocation -> {
+            List<String> keys = invocation.getArgument(1);
+            if (pending.getOrDefault(keys.get(2), new HashMap<>()).remove(invocation.getArgument(3)) == null) {
+                return 0L;
+            }
+            orders.get(keys.get(1)).remove(invocation.<String>getArgument(2));
+            stock.merge(keys.get(0), 1L, Long::sum);
+            return 1L;
+        });
+        when(template.execute(any(RedisScript.class), anyList())).thenAnswer(invocation -> {
+            List<String> keys = invocation.getArgument(1);
+            beforeBorrow.run();
+            long sibling = stock.getOrDefault(keys.get(0), 0L);
+            if (sibling <= 0) {
+                return 0L;
+            }
+            long take = (sibling + 1) / 2;
+            stock.merge(keys.get(0), -take, Long::sum);
+            return take;
+        });
+        ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+        when(valueOperations.get(anyString())).thenAnswer(invocation -> String.valueOf(stock.getOrDefault(invocation.<String>getArgument(0), 0L)));
+        when(valueOperations.increment(anyString(), anyLong())).thenAnswer(invocation -> {
+            String key = invocation.getArgument(0);
+            if (key.equals(failingIncrement)) {
+                failingIncrement = null;
+                throw new IllegalStateException("redis down");
+            }
+            return stock.merge(key, invocation.<Long>getArgument(1), Long::sum);
+        });
+        when(template.opsForValue()).thenReturn(valueOperations);
+        HashOperations<String, Object, Object> hashOperations = mock(HashOperations.class);
+        when(hashOperations.entries(anyString())).thenAnswer(invocation -> pending.getOrDefault(invocation.<String>getArgument(0), new HashMap<>()));
+        when(hashOperations.delete(anyString(), any())).thenAnswer(invocation ->
+                pending.getOrDefault(invocation.<String>getArgument(0), new HashMap<>()).remove(invocation.getArgument(1)) == null ? 0L : 1L);
+        when(template.opsForHash()).thenReturn(hashOperations);
+        shards = new SeckillStockShards();
+        ReflectionTestUtils.setField(shards, "stringRedisTemplate", template);
+    }
+
+    @Test
+    void stockMovedToAVisitedSiblingIsFoundInTheNextRound() {
+        stock.put(SeckillStockShards.stockKey(VOUCHER, 2), 4L);
+        AtomicInteger borrows = new AtomicInteger();
+        beforeBorrow = () -> {
+            // another borrower moves shard 2 into shard 1 right after shard 1 was seen empty
+            if (borrows.incrementAndGet() == 2) {
+                stock.put(SeckillStockShards.stockKey(VOUCHER, 1), stock.remove(SeckillStockShards.stockKey(VOUCHER, 2)));
+            }
+        };
+        // user 3 lives on shard 0
+        assertEquals(0, shards.tryAcquire(VOUCHER, 3L, 100L, 3));
+        assertEquals(3, totalStock());
+        // a second round was needed
+        assertEquals(3, borrows.get());
+    }
+
+    @Test
+    void soldOutOnlyWhenEveryShardIsEmpty() {
+        assertEquals(1, shards.tryAcquire(VOUCHER, 3L, 100L, 3));
+        stock.put(SeckillStockShards.stockKey(VOUCHER, 1), 1L);
+        assertEquals(0, shards.tryAcquire(VOUCHER, 3L, 100L, 3));
+        assertEquals(2, shards.tryAcquire(VOUCHER, 3L, 101L, 3));
+    }
+
+    @Test
+    void failedBorrowGivesTheStockBackToTheSibling() {
+        stock.put(SeckillStockShards.stockKey(VOUCHER, 1), 4L);
+        failingIncrement = SeckillStockShards.stockKey(VOUCHER, 0);
+        assertThrows(IllegalStateException.class, () -> shards.tryAcquire(VOUCHER, 3L, 100L, 3));
+        assertEquals(4, totalStock());
+    }
+
+    @Test
+    void acquiredOrderStaysPendingUntilConfirmedOrReleased() {
+        stock.put(SeckillStockShards.stockKey(VOUCHER, 0), 2L);
+        assertEquals(0, shards.tryAcquire(VOUCHER, 3L, 100L, 3));
+        assertEquals(0, shards.tryAcquire(VOUCHER, 6L, 101L, 3));
+        // a node died before queuing either of them
+        Map<Long, Long> stale = shards.stalePending(VOUCHER, 3, -1);
+        assertEquals(3L, stale.get(100L));
+        assertEquals(6L, stale.get(101L));
+        assertTrue(shards.stalePending(VOUCHER, 3, 60_000).isEmpty());
+        shards.confirm(VOUCHER, 3L, 100L, 3);
+        shards.release(VOUCHER, 6L, 101L, 3);
+        assertTrue(shards.stalePending(VOUCHER, 3, -1).isEmpty());
+        // released stock and user are back
+        assertEquals(1, totalStock());
+        assertEquals(0, shards.tryAcquire(VOUCHER, 6L, 102L, 3));
+    }
+
+    private long totalStock() {
+        return stock.values().stream().mapToLong(Long::longValue).sum();
+    }
+}
@@ -0,0 +1,59 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SegmentRedisIdWorkerTest {
+    private static final long STEP = 10;
+
+    private final AtomicLong counter = new AtomicLong();
+    private ValueOperations<String, String> valueOperations;
+    private SegmentRedisIdWorker worker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        // INCRBY of the icr counter
+        valueOperations = mock(ValueOperations.class);
+        when(valueOperations.increment(anyString(), anyLong()))
+                .thenAnswer(invocation -> counter.addAndGet(invocation.getArgument(1)));
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        when(template.opsForValue()).thenReturn(valueOperations);
+        worker = new SegmentRedisIdWorker(template, STEP);
+    }
+
+    @AfterEach
+    void tearDown() {
+        worker.shutdown();
+    }
+
+    @Test
+    void countsContinueAcrossSegmentsWithoutGapsOrDuplicates() {
+        for (long expected = 1; expected <= 5 * STEP; expected++) {
+            long id = worker.nextId("order");
+            assertEquals(expected, id & 0xFFFFFFFFL);
+        }
+        // one lease per segment, plus at most one buffered ahead
+        verify(valueOperations, atMost(6)).increment(anyString(), anyLong());
+    }
+
+    @Test
+    void countsAlwaysStayBelowTheSnowflakeFlag() {
+        counter.set(IIdWorker.SNOWFLAKE_FLAG - STEP);
+        assertThrows(IllegalStateException.class, () -> worker.nextId("order"));
+    }
+}
@@ -0,0 +1,107 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+nearest against a brute force scan over a large random set, with the latency of both.
+-Dgeo.test.shops=1000000 for the full size benchmark
+ */
+@Slf4j
+class ShopGeoIndexTest {
+    private static final int SHOPS = Integer.getInteger("geo.test.shops", 200_000);
+    private static final int QUERIES = 100;
+    private static final long SEED = 42;
+
+    private static ShopGeoIndex index;
+    private static List<ShopGeoIndex.Entry> entries;
+
+    @BeforeAll
+    static void build() {
+        index = new ShopGeoIndex();
+        ReflectionTestUtils.setField(index, "cellDegrees", 0.01);
+        Random random = new Random(SEED);
+        for (long id = 1; id <= SHOPS; id++) {
+            // a city sized area, about 40km x 30km
+            Shop shop = new Shop();
+            shop.setId(id);
+            shop.setX(120.0 + random.nextDouble() * 0.4);
+            shop.setY(30.1 + random.nextDouble() * 0.3);
+            shop.setTypeId((long) random.nextInt(10) + 1);
+            shop.setAvgPrice((long) random.nextInt(300));
+            shop.setScore(random.nextInt(50));
+            ReflectionTestUtils.invokeMethod(index, "put", shop);
+        }
+        @SuppressWarnings("unchecked")
+        Map<Long, ShopGeoIndex.Entry> all = (Map<Long, ShopGeoIndex.Entry>) ReflectionTestUtils.getField(index, "entries");
+        entries = new ArrayList<>(all.values());
+    }
+
+    @Test
+    void nearestMatchesBruteForce() {
+        Random random = new Random(SEED + 1);
+        long[] indexNanos = new long[QUERIES];
+        long[] scanNanos = new long[QUERIES];
+        for (int q = 0; q < QUERIES; q++) {
+            // some points outside the area, so empty rings are crossed too
+            double x = 119.95 + random.nextDouble() * 0.5;
+            double y = 30.05 + random.nextDouble() * 0.4;
+            double radius = 500 + random.nextInt(10_000);
+            int limit = 1 + random.nextInt(50);
+            Long typeId = random.nextBoolean() ? (long) random.nextInt(10) + 1 : null;
+            Predicate<ShopGeoIndex.Entry> filter = ShopGeoIndex.filter(typeId, null, null, q % 3 == 0 ? 30 : null);
+
+            long start = System.nanoTime();
+            List<Long> actual = index.nearest(x, y, radius, limit, filter).stream()
+                    .map(ShopGeoIndex.Hit::getId).collect(Collectors.toList());
+            indexNanos[q] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            List<Long> expected = entries.stream()
+                    .filter(filter)
+                    .filter(e -> ShopGeoIndex.distance(x, y, e.getX(), e.getY()) <= radius)
+                    .sorted(Comparator.comparingDouble(e -> ShopGeoIndex.distance(x, y, e.getX(), e.getY())))
+                    .limit(limit)
+                    .map(ShopGeoIndex.Entry::getId)
+                    .collect(Collectors.toList());
+            scanNanos[q] = System.nanoTime() - start;
+
+            assertEquals(expected, actual, "query " + q + " at " + x + "," + y + " r=" + radius);
+        }
+        log.info("{} shops, {} queries: index p50 {} us, p99 {} us; brute force p50 {} us",
+                SHOPS, QUERIES, percentile(indexNanos, 50) / 1000, percentile(indexNanos, 99) / 1000,
+                percentile(scanNanos, 50) / 1000);
+        assertTrue(percentile(indexNanos, 50) < percentile(scanNanos, 50));
+    }
+
+    @Test
+    void hugeRadiusStopsAtTheOccupiedExtent() {
+        long start = System.nanoTime();
+        // near the pole, where a cell is only meters wide
+        List<ShopGeoIndex.Hit> hits = index.nearest(0, 89, 2e7, 10, e -> true);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        assertEquals(10, hits.size());
+        assertTrue(millis < 5_000, "took " + millis + " ms");
+    }
+
+    private static long percentile(long[] nanos, int p) {
+        long[] sorted = Arrays.copyOf(nanos, nanos.length);
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)];
+    }
+}
@@ -0,0 +1,63 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.ShopSuggestDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ShopSuggestTrieTest {
+    private ShopSuggestTrie trie;
+
+    @BeforeEach
+    void setUp() {
+        ShopMapper shopMapper = mock(ShopMapper.class);
+        when(shopMapper.selectList(any())).thenReturn(Arrays.asList(
+                shop(1L, "海底捞火锅", 300), shop(2L, "海鲜大排档", 100), shop(3L, "Starbucks", 200)));
+        trie = new ShopSuggestTrie();
+        ReflectionTestUtils.setField(trie, "shopMapper", shopMapper);
+        ReflectionTestUtils.setField(trie, "redisMessageListenerContainer", mock(RedisMessageListenerContainer.class));
+        ReflectionTestUtils.setField(trie, "enabled", true);
+        ReflectionTestUtils.setField(trie, "topK", 10);
+        ReflectionTestUtils.setField(trie, "pinyin", true);
+        ReflectionTestUtils.invokeMethod(trie, "init");
+    }
+
+    @Test
+    void chineseNamesAreFoundByPinyinAndInitials() {
+        assertEquals(Arrays.asList(1L, 2L), ids(trie.suggest("hai", 10)));
+        assertEquals(Arrays.asList(1L), ids(trie.suggest("hdl", 10)));
+        assertEquals(Arrays.asList(1L, 2L), ids(trie.suggest("海", 10)));
+        assertEquals(Arrays.asList(3L), ids(trie.suggest("star", 10)));
+    }
+
+    @Test
+    void negativeLimitReturnsNothing() {
+        assertTrue(trie.suggest("hai", -1).isEmpty());
+    }
+
+    private static List<Long> ids(List<ShopSuggestDTO> suggestions) {
+        return suggestions.stream().map(ShopSuggestDTO::getId).collect(Collectors.toList());
+    }
+
+    private static Shop shop(Long id, String name, int sold) {
+        Shop shop = new Shop();
+        shop.setId(id);
+        shop.setName(name);
+        shop.setSold(sold);
+        shop.setScore(40);
+        return shop;
+    }
+}
@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnowflakeIdWorkerTest {
+    private static final long NOW = IIdWorker.BEGIN_TIMESTAMP + 1000;
+    // ids count from 14h before BEGIN_TIMESTAMP
+    private static final long SHIFT = TimeUnit.HOURS.toSeconds(14);
+
+    @Test
+    void idsAreUniqueAndIncreasing() {
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(3);
+        Set<Long> ids = new HashSet<>();
+        long last = -1;
+        for (int i = 0; i < 100_000; i++) {
+            long id = worker.nextId("order");
+            assertTrue(id > last);
+            assertTrue(ids.add(id));
+            last = id;
+        }
+    }
+
+    @Test
+    void idsAlwaysCarryTheFlagBit() {
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(1023, () -> NOW);
+        long id = worker.nextId("order");
+        assertEquals(IIdWorker.SNOWFLAKE_FLAG, id & IIdWorker.SNOWFLAKE_FLAG);
+        assertEquals(1000 + SHIFT, id >>> IIdWorker.COUNT_BITS);
+    }
+
+    @Test
+    void defaultClockIsEpochBased() {
+        long before = System.currentTimeMillis() / 1000;
+        long timestamp = new SnowflakeIdWorker(1).nextId("order") >>> IIdWorker.COUNT_BITS;
+        long after = System.currentTimeMillis() / 1000;
+        long offset = IIdWorker.BEGIN_TIMESTAMP - SHIFT;
+        assertTrue(timestamp >= before - offset && timestamp <= after - offset);
+    }
+
+    @Test
+    void smallClockRollbackKeepsCountingInTheLastSecond() {
+        AtomicLong clock = new AtomicLong(NOW);
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(1, clock::get);
+        long before = worker.nextId("order");
+        clock.set(NOW - 3);
+        long after = worker.nextId("order");
+        assertTrue(after > before);
+        assertEquals(before >>> IIdWorker.COUNT_BITS, after >>> IIdWorker.COUNT_BITS);
+    }
+
+    @Test
+    void largeClockRollbackIsRefused() {
+        AtomicLong clock = new AtomicLong(NOW);
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(1, clock::get);
+        worker.nextId("order");
+        clock.set(NOW - 60);
+        assertThrows(RuntimeException.class, () -> worker.nextId("order"));
+    }
+
+    @Test
+    void usedUpSequenceWaitsForTheNextSecond() {
+        AtomicLong clock = new AtomicLong(NOW);
+        AtomicLong calls = new AtomicLong();
+        // the clock moves on only after the whole sequence of the first second was handed out
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(1, () -> calls.incrementAndGet() > (1 << 21) ? clock.get() + 1 : clock.get());
+        long last = -1;
+        for (int i = 0; i <= 1 << 21; i++) {
+            long id = worker.nextId("order");
+            assertTrue(id > last);
+            last = id;
+        }
+        assertEquals(1001 + SHIFT, last >>> IIdWorker.COUNT_BITS);
+    }
+
+    @Test
+    void workerIdOutOfRangeIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new SnowflakeIdWorker(-1));
+        assertThrows(IllegalArgumentException.class, () -> new SnowflakeIdWorker(1024));
+    }
+}
@@ -0,0 +1,29 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SoldOutVoucherCacheTest {
+    @Test
+    void flagExpiresAfterTtl() throws InterruptedException {
+        SoldOutVoucherCache cache = new SoldOutVoucherCache();
+        ReflectionTestUtils.setField(cache, "soldOutTtlMs", 50L);
+        cache.markSoldOut(1L, cache.epoch());
+        assertTrue(cache.isSoldOut(1L));
+        Thread.sleep(80);
+        assertFalse(cache.isSoldOut(1L));
+    }
+
+    @Test
+    void flagSeenBeforeAReplenishIsDropped() {
+        SoldOutVoucherCache cache = new SoldOutVoucherCache();
+        ReflectionTestUtils.setField(cache, "soldOutTtlMs", 60_000L);
+        long epoch = cache.epoch();
+        ReflectionTestUtils.invokeMethod(cache, "clear", 1L);
+        cache.markSoldOut(1L, epoch);
+        assertFalse(cache.isSoldOut(1L));
+    }
+}